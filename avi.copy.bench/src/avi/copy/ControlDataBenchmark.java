@@ -0,0 +1,106 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading a large control file, and saving it with every time or
+ * just one time changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+public class ControlDataBenchmark {
+
+	@Param("50000")
+	public int entries;
+
+	private ControlData controlData;
+
+	private File ctlFile;
+
+	private File target;
+
+	private long tick;
+
+	@Benchmark
+	public ControlData read() throws IOException {
+		return ControlData.read(ctlFile);
+	}
+
+	@Benchmark
+	public void saveAll() throws IOException {
+		Map<String, Date> newest = controlData.getNewest();
+
+		tick += 60000;
+
+		for (Map.Entry<String, Date> entry : newest.entrySet()) {
+			entry.setValue(new Date(entry.getValue().getTime() + tick));
+		}
+
+		controlData.save(target);
+	}
+
+	@Benchmark
+	public void saveOne() throws IOException {
+		Map<String, Date> changed = new TreeMap<>();
+
+		tick += 60000;
+		changed.put("Show 00000", new Date(tick));
+
+		controlData.save(target, changed);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		File root = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "control");
+
+		root.mkdirs();
+		ctlFile = new File(root, "control-" + entries + ".xml");
+		target = new File(root, "saved.xml");
+
+		if (!ctlFile.exists()) {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(ctlFile), "UTF-8");
+
+			try {
+				writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<videos>\n");
+
+				for (int i = 0; i < entries; ++i) {
+					writer.write(String.format("\t<video title=\"Show %05d\" time=\"200001010000\" />\n", // <br/>
+							Integer.valueOf(i)));
+				}
+
+				writer.write("</videos>\n");
+			} finally {
+				writer.close();
+			}
+		}
+
+		System.setProperty("avi.copy.jmx", "false");
+		controlData = ControlData.read(ctlFile);
+		tick = 0;
+	}
+}
@@ -0,0 +1,121 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long {@link Copier} takes to copy one file with each engine
+ * and buffer size. Divide {@code fileSize} by the score for the throughput.
+ * <p>
+ * Files are created under {@code bench.dir}; unless it is on the disk of
+ * interest, the numbers mostly show the page cache.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(1)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+public class CopyBenchmark {
+
+	private static void write(File file, long length) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+
+		try {
+			byte[] buffer = new byte[0x100000];
+			Random random = new Random(length);
+
+			out.setLength(0);
+
+			for (long written = 0; written < length; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, length - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Param({ "0x4000", "0x100000", "0x800000" })
+	public String bufferSize;
+
+	@Param({ "stream", "channel", "direct", "pipelined", "range" })
+	public String engine;
+
+	@Param("0x10000000")
+	public String fileSize;
+
+	private File destination;
+
+	private File source;
+
+	@Benchmark
+	public long copy() {
+		Copier copier = new Copier(source, destination, null, null, null, null);
+
+		copier.run();
+
+		if (!copier.succeeded()) {
+			throw new IllegalStateException(copier.getTrouble());
+		}
+
+		return copier.bytesCopied();
+	}
+
+	@Setup(Level.Invocation)
+	public void deleteCopy() {
+		destination.delete();
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		File root = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "copy");
+		long length = Long.decode(fileSize).longValue();
+		String size = Integer.decode(bufferSize).toString();
+
+		root.mkdirs();
+		destination = new File(root, "destination.bin");
+		source = new File(root, "source-" + length + ".bin");
+
+		if (source.length() != length) {
+			write(source, length);
+		}
+
+		System.setProperty("avi.copy.jmx", "false");
+		System.setProperty("avi.copy.bufferSize", size);
+		System.setProperty("avi.copy.chunkSize", size);
+		System.setProperty("avi.copy.directBufferSize", size);
+		System.setProperty("avi.copy.pipelineBufferSize", size);
+		System.setProperty("avi.copy.rangeBufferSize", size);
+
+		if ("range".equals(engine)) {
+			System.setProperty("avi.copy.ranges", "4");
+			System.setProperty("avi.copy.rangeThreshold", "0");
+		} else {
+			System.setProperty("avi.copy.engine", engine);
+			System.setProperty("avi.copy.ranges", "1");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		destination.delete();
+	}
+}
@@ -0,0 +1,173 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the original File-based scan in computeWork() with Planner on a
+ * synthetic tree of 100,000 source files, half of which are already at the
+ * destination. The tree is created under {@code bench.dir} the first time.
+ * The planner runs with each of the given {@code avi.copy.scanThreads}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 5)
+public class ScanBenchmark {
+
+	private static final Pattern Extensions = Pattern.compile(".*\\.(avi|mkv|mov|mp4|mpg)", Pattern.CASE_INSENSITIVE);
+
+	private static final int FileCount = 500;
+
+	private static final int FolderCount = 200;
+
+	private static void create(File root) throws IOException {
+		StringBuilder control = new StringBuilder();
+		File srcDir = new File(root, "source");
+		File dstDir = new File(root, "destination");
+
+		control.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<videos>\n");
+
+		for (int folder = 0; folder < FolderCount; ++folder) {
+			String folderName = String.format("Show %03d", Integer.valueOf(folder));
+			File srcFolder = new File(srcDir, folderName);
+			File dstFolder = new File(dstDir, folderName);
+
+			srcFolder.mkdirs();
+			dstFolder.mkdirs();
+
+			for (int file = 0; file < FileCount; ++file) {
+				String name = String.format("Episode %03d.mkv", Integer.valueOf(file));
+
+				new File(srcFolder, name).createNewFile();
+
+				if (file % 2 == 0) {
+					new File(dstFolder, name).createNewFile();
+				}
+			}
+
+			control.append(String.format("\t<video title=\"%s\" time=\"200001010000\" />\n", folderName));
+		}
+
+		control.append("</videos>\n");
+
+		// written last, so an interrupted run starts over
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(root, "control.xml")), "UTF-8");
+
+		try {
+			writer.write(control.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * The scanning loop of computeWork() before Planner was introduced.
+	 */
+	private static List<WorkItem> legacyScan(File srcDir, File dstDir, ControlData controlData) {
+		List<WorkItem> work = new ArrayList<>();
+
+		for (String folderName : controlData.getNewest().keySet()) {
+			long time = controlData.getNewest().get(folderName).getTime();
+			File srcFolder = new File(srcDir, folderName);
+			File dstFolder = new File(dstDir, folderName);
+			String[] srcList = srcFolder.list();
+
+			if (srcList == null) {
+				continue;
+			}
+
+			for (String name : srcList) {
+				if (!Extensions.matcher(name).matches()) {
+					continue;
+				}
+
+				if (new File(dstFolder, name).exists()) {
+					continue;
+				}
+
+				File file = new File(srcFolder, name);
+
+				if (file.lastModified() > time) {
+					work.add(new WorkItem(folderName + '/' + name, file.length(), file.lastModified()));
+				}
+			}
+		}
+
+		Collections.sort(work);
+
+		return work;
+	}
+
+	private Planner cached;
+
+	private File ctlFile;
+
+	private File dstDir;
+
+	@Param({ "1", "8" })
+	public String scanThreads;
+
+	private File srcDir;
+
+	@Benchmark
+	public List<WorkItem> legacy() throws IOException {
+		return legacyScan(srcDir, dstDir, ControlData.read(ctlFile));
+	}
+
+	@Benchmark
+	public Planner.Plan planner() {
+		return new Planner().plan(srcDir, ctlFile, dstDir);
+	}
+
+	@Benchmark
+	public Planner.Plan plannerCached() {
+		return cached.plan(srcDir, ctlFile, dstDir);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		File root = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "scan");
+
+		ctlFile = new File(root, "control.xml");
+		dstDir = new File(root, "destination");
+		srcDir = new File(root, "source");
+
+		if (!ctlFile.exists()) {
+			create(root);
+		}
+
+		System.setProperty("avi.copy.jmx", "false");
+		System.setProperty("avi.copy.scanThreads", scanThreads);
+		cached = new Planner();
+
+		int expected = legacyScan(srcDir, dstDir, ControlData.read(ctlFile)).size();
+
+		if (cached.plan(srcDir, ctlFile, dstDir).work.size() != expected) {
+			throw new IllegalStateException("Scans disagree.");
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Copies a file to a destination where an earlier copy was interrupted
+ * half way, and to a mirror where it is new, checking that both end up
+ * identical to the source and that nothing is reported as failed.
+ * <p>
+ * Run with {@code ant test}; exits with status 1 on failure.
+ */
+public class MirrorResumeTest {
+
+	private static final int Length = 40000000;
+
+	private static final int Resumed = 16000000;
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		File root = Files.createTempDirectory("avi.copy.test").toFile();
+
+		try {
+			run(root);
+			System.out.println("MirrorResumeTest passed.");
+		} catch (AssertionError e) {
+			System.out.println("MirrorResumeTest failed: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			delete(root);
+		}
+	}
+
+	private static void run(File root) throws IOException, InterruptedException {
+		File srcDir = new File(root, "source");
+		File dstDir = new File(root, "destination");
+		File mirrorDir = new File(root, "mirror");
+		File ctlFile = new File(root, "videos.xml");
+		File source = new File(srcDir, "Show/episode.mkv");
+		File destination = new File(dstDir, "Show/episode.mkv");
+		byte[] data = new byte[Length];
+
+		new Random(1).nextBytes(data);
+		source.getParentFile().mkdirs();
+		destination.getParentFile().mkdirs();
+		mirrorDir.mkdirs();
+		write(source, data, Length);
+		source.setLastModified(1546300800000L + 86400000L);
+		write(destination, data, Resumed);
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(ctlFile), "UTF-8");
+
+		try {
+			writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<videos>\n");
+			writer.write("  <video title=\"Show\" time=\"201901010000\"/>\n</videos>\n");
+		} finally {
+			writer.close();
+		}
+
+		// as left by a copy interrupted after the first checkpoint
+		Journal.open(new File(ctlFile.getPath() + ".journal")).update(destination, Resumed, Length,
+				source.lastModified());
+
+		System.setProperty("avi.copy.mirrors", mirrorDir.getPath());
+		System.setProperty("avi.copy.jmx", "false");
+
+		Planner.Plan plan = new Planner().plan(srcDir, ctlFile, dstDir);
+
+		check(plan.error == null, "plan: " + plan.error);
+		check(plan.work.size() == 1, "expected one file to copy, not " + plan.work.size());
+
+		CopyScheduler scheduler = new CopyScheduler(plan, plan.work);
+		List<String> failures = new ArrayList<>();
+
+		scheduler.start();
+		scheduler.awaitDone(60000);
+		check(scheduler.isDone(), "the copy didn't finish");
+		scheduler.drainFailures(failures);
+		check(failures.isEmpty(), "failures: " + failures);
+		check(Arrays.equals(data, Files.readAllBytes(destination.toPath())), "the resumed copy differs");
+		check(Arrays.equals(data, Files.readAllBytes(new File(mirrorDir, "Show/episode.mkv").toPath())),
+				"the mirror differs");
+	}
+
+	private static void write(File file, byte[] data, int length) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+
+		try {
+			out.write(data, 0, length);
+			out.setLength(Length);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Copies a file that compresses well and one that doesn't through a
+ * {@link Receiver} on a loopback port, halting the first part way through
+ * a checkpoint range and resuming it, and checks that both copies are
+ * identical to their sources.
+ * <p>
+ * Run with {@code ant test}; exits with status 1 on failure.
+ */
+public class ReceiverTest {
+
+	private static final int CheckpointSize = 0x400000;
+
+	private static final int Halted = 10000000;
+
+	private static final int Length = 24000000;
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		File root = Files.createTempDirectory("avi.copy.test").toFile();
+
+		try {
+			run(root);
+			System.out.println("ReceiverTest passed.");
+		} catch (AssertionError e) {
+			System.out.println("ReceiverTest failed: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			delete(root);
+		}
+	}
+
+	private static void run(File root) throws IOException, InterruptedException {
+		File srcDir = new File(root, "source");
+		File dstDir = new File(root, "destination");
+		File text = new File(srcDir, "Show/notes.mkv");
+		File video = new File(srcDir, "Show/episode.mkv");
+		byte[] textData = new byte[Length];
+		byte[] videoData = new byte[Length / 4];
+
+		for (int i = 0; i < textData.length; ++i) {
+			textData[i] = (byte) ('a' + i / 7 % 16);
+		}
+
+		new Random(1).nextBytes(videoData);
+		text.getParentFile().mkdirs();
+		new File(dstDir, "Show").mkdirs();
+		Files.write(text.toPath(), textData);
+		Files.write(video.toPath(), videoData);
+
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		final Receiver receiver = new Receiver(dstDir);
+		Thread serving = new Thread("receiver") {
+			@Override
+			public void run() {
+				try {
+					receiver.serve(server);
+				} catch (IOException e) {
+					// closed at the end of the test
+				}
+			}
+		};
+
+		serving.setDaemon(true);
+		serving.start();
+
+		try {
+			System.setProperty("avi.copy.agent", server.getInetAddress().getHostAddress() + ':' + server.getLocalPort());
+			System.setProperty("avi.copy.agentFolder", dstDir.getPath());
+			System.setProperty("avi.copy.checkpointSize", String.valueOf(CheckpointSize));
+			System.setProperty("avi.copy.jmx", "false");
+
+			File textCopy = new File(dstDir, "Show/notes.mkv");
+			File videoCopy = new File(dstDir, "Show/episode.mkv");
+			Journal journal = Journal.open(new File(root, "videos.xml.journal"));
+
+			check(RemoteCopyEngine.forDestination(textCopy, null) != null, "the copy doesn't go through the receiver");
+
+			Copier copier = new Copier(video, videoCopy, journal, null, null, null);
+
+			copier.run();
+			check(copier.succeeded(), "copying the video: " + copier.getTrouble());
+			check(Arrays.equals(videoData, Files.readAllBytes(videoCopy.toPath())), "the video copy differs");
+
+			// slow enough to halt part way through
+			System.setProperty("avi.copy.rate", "8");
+
+			final Copier halting = new Copier(text, textCopy, journal, null, Throttle.fromSettings(), null);
+			Thread copying = new Thread(halting, "copy");
+
+			System.clearProperty("avi.copy.rate");
+			copying.start();
+
+			while (halting.bytesCopied() < Halted && copying.isAlive()) {
+				Thread.sleep(10);
+			}
+
+			halting.halt();
+			copying.join();
+
+			Journal.Checkpoint checkpoint = journal.get(textCopy);
+
+			check(halting.isResumable(), "the halted copy can't be resumed: " + halting.getTrouble());
+			check(checkpoint != null && checkpoint.committed > 0 && checkpoint.committed < halting.bytesCopied(),
+					"expected a checkpoint before where the copy was halted");
+
+			Copier resuming = new Copier(text, textCopy, journal, null, null, null);
+
+			check(resuming.startPosition() == checkpoint.committed, "the copy doesn't resume from the checkpoint");
+			resuming.run();
+			check(resuming.succeeded(), "resuming: " + resuming.getTrouble());
+			check(!journal.contains(textCopy), "the journal still holds the finished copy");
+			check(Arrays.equals(textData, Files.readAllBytes(textCopy.toPath())), "the resumed copy differs");
+		} finally {
+			server.close();
+		}
+	}
+}
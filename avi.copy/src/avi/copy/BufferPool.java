@@ -0,0 +1,97 @@
+package avi.copy;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps direct buffers for reuse: they are slow to allocate and their memory
+ * is only returned when they are garbage collected. At most
+ * {@code avi.copy.pooledBuffers} idle buffers of each shape are kept.
+ */
+final class BufferPool {
+
+	private static final Method AlignedSlice = findAlignedSlice();
+
+	private static final Map<Long, Deque<ByteBuffer>> Idle = new HashMap<>();
+
+	/**
+	 * @return a cleared direct buffer of exactly {@code size} bytes whose
+	 *         address is a multiple of {@code alignment}, if the runtime can
+	 *         arrange that (Java 9 and later)
+	 */
+	static ByteBuffer acquire(int size, int alignment) {
+		synchronized (Idle) {
+			Deque<ByteBuffer> idle = Idle.get(keyOf(size, alignment));
+
+			if (idle != null && !idle.isEmpty()) {
+				ByteBuffer buffer = idle.pop();
+
+				buffer.clear();
+
+				return buffer;
+			}
+		}
+
+		if (alignment <= 1 || AlignedSlice == null) {
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size + alignment);
+
+		try {
+			buffer = (ByteBuffer) AlignedSlice.invoke(buffer, Integer.valueOf(alignment));
+		} catch (ReflectiveOperationException e) {
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		buffer.limit(size);
+
+		return buffer.slice();
+	}
+
+	/**
+	 * @return true if {@link #acquire(int, int)} can honour an alignment
+	 */
+	static boolean canAlign() {
+		return AlignedSlice != null;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int, int)} to the pool.
+	 */
+	static void release(ByteBuffer buffer, int alignment) {
+		Long key = keyOf(buffer.capacity(), alignment);
+
+		synchronized (Idle) {
+			Deque<ByteBuffer> idle = Idle.get(key);
+
+			if (idle == null) {
+				Idle.put(key, idle = new ArrayDeque<>());
+			}
+
+			if (idle.size() < Settings.getInt("pooledBuffers", 8)) {
+				idle.push(buffer);
+			}
+		}
+	}
+
+	private static Method findAlignedSlice() {
+		try {
+			return ByteBuffer.class.getMethod("alignedSlice", int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Long keyOf(int size, int alignment) {
+		return Long.valueOf(((long) alignment << 32) | size);
+	}
+
+	private BufferPool() {
+		super();
+	}
+}
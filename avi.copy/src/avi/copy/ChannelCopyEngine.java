@@ -0,0 +1,45 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies with {@link FileChannel#transferTo}, letting the operating system
+ * move the data (sendfile or copy_file_range on Linux) in large chunks.
+ */
+final class ChannelCopyEngine implements CopyEngine {
+
+	private final long chunkSize;
+
+	ChannelCopyEngine(long chunkSize) {
+		super();
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, Monitor monitor)
+			throws IOException {
+		FileChannel source = in.getChannel();
+		FileChannel target = out.getChannel();
+
+		target.position(position);
+
+		while (count > 0) {
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			long len = source.transferTo(position, Math.min(chunkSize, count), target);
+
+			if (len <= 0) {
+				// the source is shorter than expected
+				break;
+			}
+
+			position += len;
+			count -= len;
+			monitor.copied(len);
+		}
+	}
+}
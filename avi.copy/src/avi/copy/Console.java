@@ -0,0 +1,417 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the copier without a user interface, for cron jobs and headless
+ * servers. Progress goes to standard output, as text or as one JSON object
+ * per line. Tuning options are the same {@code avi.copy.*} system
+ * properties used by the GUI.
+ * <p>
+ * In watch mode the source folders are watched for new recordings, which
+ * are copied as soon as they stop growing; a full scan is still done
+ * periodically in case an event was missed.
+ */
+public final class Console {
+
+	private static final String[] Usage = { // <br/>
+			"Usage: java avi.copy.Console [options] {control-file} {destination} {source}", // <br/>
+			"  --json              report progress as JSON, one object per line", // <br/>
+			"  --interval=millis   time between progress reports (default 1000)", // <br/>
+			"  --watch[=seconds]   keep running, copying new files as they appear;", // <br/>
+			"                      all folders are scanned again after the given delay (default 3600)", // <br/>
+			"  --agent=host[:port] send the data to a receiver running at the destination (see", // <br/>
+			"                      avi.copy.Receiver), compressed where that helps", // <br/>
+			"  --dedupe            link files whose content is already at the destination", // <br/>
+			"  --estimate[=minutes]", // <br/>
+			"                      show the time and space each destination needs, without copying;", // <br/>
+			"                      fails if space is short or the time would exceed the minutes given", // <br/>
+			"  --mirror=folder     copy to this folder too, reading each source file only once;", // <br/>
+			"                      may be given more than once", // <br/>
+			"  --order=policy      the order to copy files in: name (the default), newest, smallest,", // <br/>
+			"                      priority (of each folder, from the control file) or folders (in turn)", // <br/>
+			"  --verify            read each copy back and compare its checksum with the source" // <br/>
+	};
+
+	/**
+	 * Formats an estimated time, which may be unknown.
+	 */
+	private static String format(long seconds) {
+		return seconds < 0 ? "?" : Util.formatDuration(seconds);
+	}
+
+	public static void main(String[] args) {
+		Console console = new Console();
+		int status = console.run(args);
+
+		if (status != 0 && !console.stopping) {
+			System.exit(status);
+		}
+	}
+
+	private boolean estimate;
+
+	private long interval;
+
+	private boolean json;
+
+	private final Session session;
+
+	/*private*/volatile boolean stopping;
+
+	private long watchDelay;
+
+	private long window;
+
+	private Console() {
+		super();
+		this.estimate = false;
+		this.interval = 1000;
+		this.json = false;
+		this.session = new Session();
+		this.session.addListener(new Progress.Listener() {
+			@Override
+			public void progressed(Progress.Snapshot snapshot) {
+				reportProgress(snapshot);
+			}
+		});
+		this.stopping = false;
+		this.watchDelay = -1;
+		this.window = -1;
+	}
+
+	/**
+	 * @return the number of files that failed to copy
+	 */
+	private int copy(Planner.Plan plan) {
+		int failureCount = 0;
+
+		session.adopt(plan);
+		session.start();
+
+		while (session.poll()) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				// we're being shut down
+			}
+
+			if (stopping) {
+				session.abort();
+			}
+
+			failureCount += reportFailures();
+		}
+
+		failureCount += reportFailures();
+		reportDone();
+
+		return failureCount;
+	}
+
+	private boolean parse(String[] args, List<String> files) {
+		for (String arg : args) {
+			try {
+				if (arg.equals("--json")) {
+					json = true;
+				} else if (arg.startsWith("--interval=")) {
+					interval = Math.max(1, Long.parseLong(arg.substring(11)));
+				} else if (arg.equals("--watch")) {
+					watchDelay = 3600;
+				} else if (arg.startsWith("--watch=")) {
+					watchDelay = Math.max(1, Long.parseLong(arg.substring(8)));
+				} else if (arg.startsWith("--agent=")) {
+					System.setProperty("avi.copy.agent", arg.substring(8));
+				} else if (arg.equals("--dedupe")) {
+					System.setProperty("avi.copy.dedupe", "true");
+				} else if (arg.equals("--estimate")) {
+					estimate = true;
+				} else if (arg.startsWith("--estimate=")) {
+					estimate = true;
+					window = Math.max(0, Long.parseLong(arg.substring(11)));
+				} else if (arg.startsWith("--mirror=")) {
+					String mirrors = System.getProperty("avi.copy.mirrors", "");
+
+					System.setProperty("avi.copy.mirrors", (mirrors.isEmpty() ? "" : mirrors + File.pathSeparator) // <br/>
+							+ arg.substring(9));
+				} else if (arg.startsWith("--order=")) {
+					System.setProperty("avi.copy.order", arg.substring(8));
+				} else if (arg.equals("--verify")) {
+					System.setProperty("avi.copy.verify", "true");
+				} else if (arg.startsWith("-")) {
+					return false;
+				} else {
+					files.add(arg);
+				}
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+		return files.size() == 3;
+	}
+
+	private void report(Planner.Plan plan) {
+		int fileCount = plan.work.size();
+		long totalBytes = plan.totalBytes();
+
+		if (plan.error != null) {
+			reportError(plan.error);
+		} else if (json) {
+			System.out.format("{\"event\":\"plan\",\"files\":%d,\"bytes\":%d}%n", // <br/>
+					Integer.valueOf(fileCount), Long.valueOf(totalBytes));
+		} else if (fileCount == 0) {
+			System.out.println("Destination is up-to-date.");
+		} else {
+			System.out.format("%s in %d %s to be copied.%n", // <br/>
+					Util.format(totalBytes), // <br/>
+					Integer.valueOf(fileCount), // <br/>
+					(fileCount == 1 ? "file" : "files"));
+		}
+	}
+
+	private void reportDone() {
+		if (json) {
+			System.out.format("{\"event\":\"done\",\"stopped\":%b}%n", Boolean.valueOf(stopping));
+		} else {
+			System.out.println(stopping ? "Stopped." : "Done.");
+		}
+	}
+
+	private void reportError(String message) {
+		if (json) {
+			System.out.format("{\"event\":\"error\",\"message\":%s}%n", Json.quote(message));
+		} else {
+			System.out.println(message);
+		}
+	}
+
+	/**
+	 * @return true if the plan fits the destinations and the time window
+	 */
+	private boolean reportEstimate(Estimate estimate) {
+		boolean inTime = window < 0 || (estimate.seconds >= 0 && estimate.seconds <= window * 60);
+
+		if (json) {
+			System.out.println(estimate.toJson());
+			return estimate.fits() && inTime;
+		}
+
+		for (Estimate.Target target : estimate.targets) {
+			System.out.format("%s: %s in %d %s, %s free%s; %s at %s/s%n", // <br/>
+					target.folder.getPath(), Util.format(target.bytes), // <br/>
+					Integer.valueOf(target.files), (target.files == 1 ? "file" : "files"), // <br/>
+					Util.format(target.freeBytes), (target.fits ? "" : " (not enough)"), // <br/>
+					format(target.seconds), (target.rate < 0 ? "?" : Util.format((long) target.rate)));
+		}
+
+		for (Estimate.Folder folder : estimate.folders) {
+			System.out.format("  %s: %s in %d %s, %s%n", // <br/>
+					folder.name, Util.format(folder.bytes), // <br/>
+					Integer.valueOf(folder.files), (folder.files == 1 ? "file" : "files"), // <br/>
+					format(folder.seconds));
+		}
+
+		System.out.format("Estimated time: %s%s.%n", format(estimate.seconds), // <br/>
+				(window < 0 ? "" : inTime ? ", within the window" : " (more than the window allows)"));
+
+		return estimate.fits() && inTime;
+	}
+
+	private int reportFailures() {
+		List<String> failures = new ArrayList<>();
+
+		session.drainFailures(failures);
+
+		for (String failure : failures) {
+			if (json) {
+				System.out.format("{\"event\":\"failed\",\"message\":%s}%n", Json.quote(failure));
+			} else {
+				System.out.println(failure);
+			}
+		}
+
+		return failures.size();
+	}
+
+	/*private*/void reportProgress(Progress.Snapshot snapshot) {
+		List<Progress.FileProgress> copying = snapshot.files;
+		long bytesCopied = snapshot.bytesCopied;
+		long totalBytes = snapshot.totalBytes;
+
+		if (json) {
+			StringBuilder names = new StringBuilder();
+			StringBuilder files = new StringBuilder();
+
+			for (Progress.FileProgress file : copying) {
+				String name = Json.quote(file.item.getPathName());
+
+				names.append(names.length() == 0 ? "" : ",").append(name);
+				files.append(files.length() == 0 ? "" : ",");
+				files.append(String.format("{\"path\":%s,\"destination\":%s,\"bytesCopied\":%d,\"rate\":%d}", // <br/>
+						name, Json.quote(file.destination.getPath()), Long.valueOf(file.bytesCopied), // <br/>
+						Long.valueOf((long) file.rate)));
+			}
+
+			System.out.format("{\"event\":\"progress\",\"bytesCopied\":%d,\"totalBytes\":%d,\"rate\":%d," // <br/>
+					+ "\"remaining\":%d,\"copying\":[%s],\"files\":[%s]}%n", // <br/>
+					Long.valueOf(bytesCopied), Long.valueOf(totalBytes), Long.valueOf((long) snapshot.rate), // <br/>
+					Long.valueOf(snapshot.remaining), names, files);
+		} else if (!copying.isEmpty()) {
+			String status = copying.get(0).item.getPathName();
+
+			if (copying.size() > 1) {
+				status += String.format(" and %d more", Integer.valueOf(copying.size() - 1));
+			}
+
+			System.out.format("[%3d%%] %s of %s at %s/s, %s left: %s%n", // <br/>
+					Long.valueOf(totalBytes > 0 ? bytesCopied * 100 / totalBytes : 100), // <br/>
+					Util.format(bytesCopied), Util.format(totalBytes), // <br/>
+					Util.format((long) snapshot.rate), // <br/>
+					snapshot.remaining < 0 ? "?" : Util.formatDuration(snapshot.remaining), // <br/>
+					status);
+		}
+	}
+
+	private void reportQueued(int fileCount) {
+		if (json) {
+			System.out.format("{\"event\":\"queued\",\"files\":%d}%n", Integer.valueOf(fileCount));
+		} else {
+			System.out.format("Queued %d new %s.%n", Integer.valueOf(fileCount), (fileCount == 1 ? "file" : "files"));
+		}
+	}
+
+	private int run(String[] args) {
+		List<String> files = new ArrayList<>();
+
+		if (!parse(args, files)) {
+			for (String line : Usage) {
+				System.err.println(line);
+			}
+
+			return 2;
+		}
+
+		File ctlFile = new File(files.get(0));
+		File dstDir = new File(files.get(1));
+		File srcDir = new File(files.get(2));
+		final Thread mainThread = Thread.currentThread();
+
+		// the receiver is taken to serve the destination folder
+		if (System.getProperty("avi.copy.agentFolder") == null) {
+			System.setProperty("avi.copy.agentFolder", dstDir.getPath());
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+			@Override
+			public void run() {
+				// let the main thread halt the copies and save the control file
+				stopping = true;
+				mainThread.interrupt();
+
+				try {
+					mainThread.join(10000);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		});
+
+		int status = 0;
+
+		try {
+			if (watchDelay >= 0) {
+				watch(srcDir, ctlFile, dstDir);
+			} else {
+				Planner.Plan plan = session.plan(srcDir, ctlFile, dstDir);
+
+				report(plan);
+
+				if (plan.error != null) {
+					status = 1;
+				} else if (estimate) {
+					status = reportEstimate(new Estimate(plan)) ? 0 : 1;
+				} else if (!plan.work.isEmpty() && copy(plan) != 0) {
+					status = 1;
+				}
+			}
+		} catch (InterruptedException e) {
+			// we're being shut down
+		} finally {
+			session.close(5000);
+		}
+
+		return status;
+	}
+
+	private void watch(File srcDir, File ctlFile, File dstDir) throws InterruptedException {
+		boolean copying = false;
+		long nextScan = 0;
+		FolderWatcher watcher = null;
+
+		try {
+			while (!stopping) {
+				long now = System.currentTimeMillis();
+
+				if (!copying && (now >= nextScan || (watcher != null && watcher.overflowed()))) {
+					Planner.Plan plan = session.plan(srcDir, ctlFile, dstDir);
+
+					report(plan);
+					Util.safeClose(watcher);
+					watcher = null;
+					nextScan = now + watchDelay * 1000;
+
+					if (plan.error == null) {
+						session.adopt(plan);
+
+						try {
+							watcher = new FolderWatcher(srcDir, plan.controlData.getNewest().keySet(), Planner.Extensions);
+						} catch (IOException e) {
+							reportError("Can't watch source folders: " + e.getLocalizedMessage());
+						}
+
+						List<WorkItem> settled = new ArrayList<>();
+
+						// a recording still being written waits like one the watcher found
+						for (WorkItem item : plan.work) {
+							if (FolderWatcher.isSettled(item, now)) {
+								settled.add(item);
+							} else if (watcher != null) {
+								watcher.hold(item);
+							}
+						}
+
+						if (!settled.isEmpty()) {
+							session.submit(settled);
+						}
+					}
+				}
+
+				if (watcher != null) {
+					List<WorkItem> settled = watcher.poll();
+					int count = settled.isEmpty() ? 0 : session.submit(settled);
+
+					if (count != 0) {
+						reportQueued(count);
+					}
+				}
+
+				boolean wasCopying = copying;
+
+				if (copying = session.poll()) {
+					reportFailures();
+				} else if (wasCopying) {
+					reportFailures();
+					reportDone();
+				}
+
+				Thread.sleep(interval);
+			}
+		} finally {
+			Util.safeClose(watcher);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An index of the files already at the destination, by content, so a file
+ * that has merely been filed under another folder can be linked rather
+ * than copied again.
+ * <p>
+ * Files are matched by length first, then by a checksum of a few sample
+ * blocks (worked out only when lengths match, and remembered). The
+ * {@link Copier} then compares the files byte by byte before linking, where
+ * the reading can be throttled, paused and stopped like a copy.
+ * Each line of the index file holds the sample checksum (in hex, or - if
+ * not yet known), length, modification time and path, separated by tabs.
+ */
+final class ContentIndex {
+
+	private static final class Content {
+
+		final long length;
+
+		final long modified;
+
+		Long sample;
+
+		Content(long length, long modified, Long sample) {
+			super();
+			this.length = length;
+			this.modified = modified;
+			this.sample = sample;
+		}
+	}
+
+	private static final int SampleSize = 0x10000;
+
+	static ContentIndex open(File file) throws IOException {
+		ContentIndex index = new ContentIndex(file);
+
+		for (String[] fields : Util.readFields(file, 4)) {
+			try {
+				Long sample = "-".equals(fields[0]) ? null : Long.valueOf(Long.parseLong(fields[0], 16));
+				long length = Long.parseLong(fields[1]);
+				long modified = Long.parseLong(fields[2]);
+
+				index.contents.put(fields[3], new Content(length, modified, sample));
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return a checksum of the blocks at the start, middle and end of
+	 *         {@code file}
+	 */
+	private static long sample(File file, long length) throws IOException {
+		CRC32 hash = new CRC32();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+
+		try {
+			byte[] buffer = new byte[SampleSize];
+			long[] positions = { 0, Math.max(0, length / 2 - SampleSize / 2), Math.max(0, length - SampleSize) };
+
+			for (long position : positions) {
+				in.seek(position);
+
+				int len = in.read(buffer, 0, (int) Math.min(SampleSize, length - position));
+
+				if (len > 0) {
+					hash.update(buffer, 0, len);
+				}
+			}
+		} finally {
+			Util.safeClose(in);
+		}
+
+		return hash.getValue();
+	}
+
+	private final Map<String, Content> contents;
+
+	private boolean dirty;
+
+	private final File file;
+
+	private ContentIndex(File file) {
+		super();
+		this.contents = new TreeMap<>();
+		this.dirty = false;
+		this.file = file;
+	}
+
+	/**
+	 * Adds a file that has just been copied to the destination.
+	 */
+	public synchronized void add(File path, long length, long modified) {
+		put(path.getAbsolutePath(), length, modified);
+	}
+
+	/**
+	 * Looks for files at the destination that may have the same content as
+	 * {@code source}: they have the same length and sample checksum, and
+	 * aren't known to have a different checksum in the manifest.
+	 *
+	 * @return the files found, which still need comparing with the source
+	 */
+	public List<File> find(File source, long length, long modified, Manifest manifest, Journal journal) {
+		List<File> result = new ArrayList<>();
+
+		if (length == 0) {
+			return result;
+		}
+
+		List<String> candidates = new ArrayList<>();
+
+		synchronized (this) {
+			for (Entry<String, Content> entry : contents.entrySet()) {
+				if (entry.getValue().length == length) {
+					candidates.add(entry.getKey());
+				}
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			return result;
+		}
+
+		try {
+			long wanted = sample(source, length);
+			Long sourceChecksum = manifest.lookup(source, length, modified);
+
+			for (String candidate : candidates) {
+				File existing = new File(candidate);
+
+				// the index may be out of date, or the file only partly copied
+				if (existing.length() != length || journal.contains(existing)) {
+					continue;
+				}
+
+				Long existingSample = sampleOf(candidate, existing);
+
+				if (existingSample == null || existingSample.longValue() != wanted) {
+					continue;
+				}
+
+				Long existingChecksum = manifest.lookup(existing, length, existing.lastModified());
+
+				// only rule out what is known to differ; reading both in full is for the compare
+				if (sourceChecksum == null || existingChecksum == null
+						|| sourceChecksum.longValue() == existingChecksum.longValue()) {
+					result.add(existing);
+				}
+			}
+		} catch (IOException e) {
+			// copy it instead
+		}
+
+		return result;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Brings the entries for {@code folder} up to date with a listing of it.
+	 */
+	public synchronized void refresh(File folder, List<WorkItem> listing) {
+		String prefix = folder.getAbsolutePath() + File.separator;
+		Map<String, WorkItem> present = new HashMap<>();
+
+		for (WorkItem item : listing) {
+			String pathName = item.getPathName();
+
+			present.put(prefix + pathName.substring(pathName.lastIndexOf('/') + 1), item);
+		}
+
+		for (Iterator<String> paths = contents.keySet().iterator(); paths.hasNext();) {
+			String path = paths.next();
+
+			if (path.startsWith(prefix) && path.indexOf(File.separatorChar, prefix.length()) < 0
+					&& !present.containsKey(path)) {
+				paths.remove();
+				dirty = true;
+			}
+		}
+
+		for (Entry<String, WorkItem> entry : present.entrySet()) {
+			WorkItem item = entry.getValue();
+
+			put(entry.getKey(), item.getLength(), item.getModified());
+		}
+	}
+
+	/**
+	 * Writes the index if it has changed since it was read or last saved.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+
+		List<String> lines = new ArrayList<>();
+
+		for (Entry<String, Content> entry : contents.entrySet()) {
+			Content content = entry.getValue();
+
+			lines.add(String.format("%s\t%d\t%d\t%s", // <br/>
+					content.sample != null ? Long.toHexString(content.sample.longValue()) : "-", // <br/>
+					Long.valueOf(content.length), // <br/>
+					Long.valueOf(content.modified), // <br/>
+					entry.getKey()));
+		}
+
+		Util.writeLines(file, lines);
+		dirty = false;
+	}
+
+	private void put(String path, long length, long modified) {
+		Content content = contents.get(path);
+
+		if (content == null || content.length != length || content.modified != modified) {
+			contents.put(path, new Content(length, modified, null));
+			dirty = true;
+		}
+	}
+
+	private Long sampleOf(String path, File existing) throws IOException {
+		Content content;
+
+		synchronized (this) {
+			content = contents.get(path);
+
+			if (content == null || content.modified != existing.lastModified()) {
+				return null;
+			}
+
+			if (content.sample != null) {
+				return content.sample;
+			}
+		}
+
+		long sample = sample(existing, content.length);
+
+		synchronized (this) {
+			content.sample = Long.valueOf(sample);
+			dirty = true;
+		}
+
+		return content.sample;
+	}
+}
@@ -0,0 +1,397 @@
+package avi.copy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * The contents of a control file: the newest modification time already
+ * copied for each folder, recorded as {@code <video title= time=>}
+ * elements. A video element may also carry a {@code priority}, used when
+ * files are copied in order of priority (see {@link QueueOrder}).
+ * <p>
+ * The file is read and rewritten with StAX. Saving streams the file as it
+ * is on disk, so anything besides the time attributes of video elements is
+ * preserved. Only times that have actually changed are rewritten.
+ */
+final class ControlData {
+
+	private static final XMLInputFactory Input = newInputFactory();
+
+	private static final XMLOutputFactory Output = XMLOutputFactory.newInstance();
+
+	private static final String Priority = "priority";
+
+	private static final String Time = "time";
+
+	private static final String Title = "title";
+
+	private static final String Video = "video";
+
+	private static DateFormat newDateFormat() {
+		return new SimpleDateFormat("yyyyMMddHHmm");
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+		return factory;
+	}
+
+	static ControlData read(File file) throws IOException {
+		long started = System.nanoTime();
+		ControlData data = new ControlData(file);
+		DateFormat format = newDateFormat();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+		try {
+			XMLStreamReader reader = Input.createXMLStreamReader(in);
+
+			try {
+				int depth = 0;
+
+				while (reader.hasNext()) {
+					switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						depth += 1;
+
+						// only children of the document element count
+						if (depth == 2 && Video.equals(reader.getLocalName())) {
+							String title = reader.getAttributeValue(null, Title);
+							String time = reader.getAttributeValue(null, Time);
+
+							if (title != null) {
+								data.newest.put(title, parse(format, time));
+								putPriority(data.priorities, title, reader.getAttributeValue(null, Priority));
+							}
+						}
+						break;
+
+					case XMLStreamConstants.END_ELEMENT:
+						depth -= 1;
+						break;
+
+					default:
+						break;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			Util.safeClose(in);
+		}
+
+		data.saved.putAll(data.newest);
+		Metrics.record("read", file.getPath(), System.nanoTime() - started, file.length(), 0, 0);
+
+		return data;
+	}
+
+	private static Date parse(DateFormat format, String time) {
+		if (time != null) {
+			try {
+				return format.parse(time);
+			} catch (ParseException e) {
+				// fall through
+			}
+		}
+
+		return new Date(0);
+	}
+
+	private static void putPriority(Map<String, Integer> priorities, String title, String priority) {
+		if (priority != null) {
+			try {
+				priorities.put(title, Integer.valueOf(priority.trim()));
+			} catch (NumberFormatException e) {
+				// treated as no priority
+			}
+		}
+	}
+
+	/**
+	 * Copies the start tag at the reader, replacing the time attribute if
+	 * {@code time} is not null, and advances the reader.
+	 *
+	 * @return the type of the event following the start tag; if that is
+	 *         END_ELEMENT, it has been consumed and written as an empty element
+	 */
+	private static int writeStartElement(XMLStreamReader reader, XMLStreamWriter writer, String time)
+			throws XMLStreamException {
+		int attributeCount = reader.getAttributeCount();
+		int namespaceCount = reader.getNamespaceCount();
+		String localName = reader.getLocalName();
+		String namespace = reader.getNamespaceURI();
+		String prefix = reader.getPrefix();
+		String[] attributes = new String[attributeCount * 4];
+		String[] namespaces = new String[namespaceCount * 2];
+
+		for (int i = 0; i < attributeCount; ++i) {
+			attributes[i * 4] = reader.getAttributePrefix(i);
+			attributes[i * 4 + 1] = reader.getAttributeNamespace(i);
+			attributes[i * 4 + 2] = reader.getAttributeLocalName(i);
+			attributes[i * 4 + 3] = reader.getAttributeValue(i);
+		}
+
+		for (int i = 0; i < namespaceCount; ++i) {
+			namespaces[i * 2] = reader.getNamespacePrefix(i);
+			namespaces[i * 2 + 1] = reader.getNamespaceURI(i);
+		}
+
+		int next = reader.next();
+		boolean empty = next == XMLStreamConstants.END_ELEMENT;
+
+		if (prefix == null || prefix.isEmpty()) {
+			if (empty) {
+				writer.writeEmptyElement(localName);
+			} else {
+				writer.writeStartElement(localName);
+			}
+		} else {
+			if (empty) {
+				writer.writeEmptyElement(prefix, localName, namespace);
+			} else {
+				writer.writeStartElement(prefix, localName, namespace);
+			}
+		}
+
+		for (int i = 0; i < namespaces.length; i += 2) {
+			if (namespaces[i] == null || namespaces[i].isEmpty()) {
+				writer.writeDefaultNamespace(namespaces[i + 1]);
+			} else {
+				writer.writeNamespace(namespaces[i], namespaces[i + 1]);
+			}
+		}
+
+		boolean timeWritten = false;
+
+		for (int i = 0; i < attributes.length; i += 4) {
+			String value = attributes[i + 3];
+
+			if (time != null && attributes[i + 1] == null && Time.equals(attributes[i + 2])) {
+				value = time;
+				timeWritten = true;
+			}
+
+			if (attributes[i] == null || attributes[i].isEmpty()) {
+				writer.writeAttribute(attributes[i + 2], value);
+			} else {
+				writer.writeAttribute(attributes[i], attributes[i + 1], attributes[i + 2], value);
+			}
+		}
+
+		if (time != null && !timeWritten) {
+			writer.writeAttribute(Time, time);
+		}
+
+		return next;
+	}
+
+	private final File file;
+
+	private final Map<String, Date> newest;
+
+	private final Map<String, Integer> priorities;
+
+	private final Map<String, Date> saved;
+
+	private ControlData(File file) {
+		super();
+		this.file = file;
+		this.newest = new TreeMap<>();
+		this.priorities = new HashMap<>();
+		this.saved = new HashMap<>();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the modifiable map from folder name to the newest
+	 *         modification time already copied
+	 */
+	public Map<String, Date> getNewest() {
+		return newest;
+	}
+
+	/**
+	 * @return the map from folder name to priority, for the folders that have
+	 *         one
+	 */
+	public Map<String, Integer> getPriorities() {
+		return priorities;
+	}
+
+	public void save(File target) throws IOException {
+		save(target, new TreeMap<>(newest));
+	}
+
+	/**
+	 * Writes {@code times}, which may hold just the entries of
+	 * {@link #getNewest()} that have changed, to {@code target}. The file is
+	 * written beside the target, forced to disk and then renamed over the
+	 * target, so a crash leaves either the old or the new version.
+	 */
+	public synchronized void save(File target, Map<String, Date> times) throws IOException {
+		long started = System.nanoTime();
+		File temp = new File(target.getPath() + ".tmp");
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+
+			try {
+				OutputStream out = new BufferedOutputStream(stream);
+
+				transform(in, out, times);
+				out.flush();
+				stream.getChannel().force(true);
+			} finally {
+				stream.close();
+			}
+		} catch (XMLStreamException e) {
+			temp.delete();
+			throw new IOException(e);
+		} finally {
+			Util.safeClose(in);
+		}
+
+		Util.replace(temp, target);
+
+		saved.clear();
+		saved.putAll(times);
+		Metrics.record("save", target.getPath(), System.nanoTime() - started, target.length(), 0, 0);
+	}
+
+	private String patchedTime(XMLStreamReader reader, DateFormat format, Map<String, Date> times) {
+		String title = reader.getAttributeValue(null, Title);
+
+		if (title == null) {
+			return null;
+		}
+
+		Date date = times.get(title);
+
+		if (date == null || date.equals(saved.get(title))) {
+			return null;
+		}
+
+		return format.format(date);
+	}
+
+	private void transform(InputStream in, OutputStream out, Map<String, Date> times) throws XMLStreamException {
+		DateFormat format = newDateFormat();
+		XMLStreamReader reader = Input.createXMLStreamReader(in);
+		XMLStreamWriter writer = Output.createXMLStreamWriter(out, "utf-8");
+
+		try {
+			int depth = 0;
+			int event = reader.getEventType();
+
+			for (;;) {
+				switch (event) {
+				case XMLStreamConstants.START_DOCUMENT:
+					// we always write utf-8, whatever the original said
+					writer.writeStartDocument("utf-8", reader.getVersion() != null ? reader.getVersion() : "1.0");
+					writer.writeCharacters("\n");
+					break;
+
+				case XMLStreamConstants.START_ELEMENT:
+					depth += 1;
+
+					String time = null;
+
+					if (depth == 2 && Video.equals(reader.getLocalName())) {
+						time = patchedTime(reader, format, times);
+					}
+
+					event = writeStartElement(reader, writer, time);
+
+					if (event == XMLStreamConstants.END_ELEMENT) {
+						// written as an empty element
+						depth -= 1;
+						break;
+					}
+
+					continue;
+
+				case XMLStreamConstants.END_ELEMENT:
+					depth -= 1;
+					writer.writeEndElement();
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					break;
+
+				case XMLStreamConstants.CDATA:
+					writer.writeCData(reader.getText());
+					break;
+
+				case XMLStreamConstants.COMMENT:
+					writer.writeComment(reader.getText());
+					if (depth == 0) {
+						writer.writeCharacters("\n");
+					}
+					break;
+
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+					if (depth == 0) {
+						writer.writeCharacters("\n");
+					}
+					break;
+
+				case XMLStreamConstants.DTD:
+					writer.writeDTD(reader.getText());
+					writer.writeCharacters("\n");
+					break;
+
+				case XMLStreamConstants.ENTITY_REFERENCE:
+					writer.writeEntityRef(reader.getLocalName());
+					break;
+
+				case XMLStreamConstants.END_DOCUMENT:
+					writer.writeEndDocument();
+					writer.writeCharacters("\n");
+					writer.flush();
+					return;
+
+				default:
+					break;
+				}
+
+				event = reader.next();
+			}
+		} finally {
+			writer.close();
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves control data on a background thread, writing at most once every
+ * {@code avi.copy.saveInterval} milliseconds no matter how often it
+ * changes. Times that fail to be written are kept and tried again with
+ * the next save.
+ */
+final class ControlSaver {
+
+	private ControlData data;
+
+	private final ScheduledExecutorService executor;
+
+	private final long interval;
+
+	private long lastSaved;
+
+	private Map<String, Date> pending;
+
+	private ScheduledFuture<?> scheduled;
+
+	private final Runnable task;
+
+	private IOException trouble;
+
+	private boolean writing;
+
+	ControlSaver() {
+		super();
+		this.data = null;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "save");
+
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+		this.interval = Settings.getLong("saveInterval", 5000);
+		this.lastSaved = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(interval);
+		this.pending = null;
+		this.scheduled = null;
+		this.task = new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		};
+		this.trouble = null;
+		this.writing = false;
+	}
+
+	/**
+	 * Waits until all changes have been written, or writing them fails.
+	 *
+	 * @return the failure, if any, which is then forgotten
+	 */
+	public synchronized IOException await() throws InterruptedException {
+		trouble = null;
+		flush();
+
+		while ((pending != null || writing) && trouble == null) {
+			wait();
+		}
+
+		IOException result = trouble;
+
+		trouble = null;
+
+		return result;
+	}
+
+	/**
+	 * Notes that the time for a folder in {@code controlData} has changed
+	 * and should be written back to its file.
+	 */
+	public synchronized void changed(ControlData controlData, String folderName, Date time) {
+		if (pending == null) {
+			pending = new TreeMap<>();
+		}
+
+		data = controlData;
+		pending.put(folderName, time);
+
+		if (scheduled == null) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSaved);
+
+			schedule(Math.max(0, interval - elapsed));
+		}
+	}
+
+	/**
+	 * Writes any outstanding changes, waiting at most {@code timeout}
+	 * milliseconds, and stops the background thread.
+	 */
+	public void close(long timeout) {
+		flush();
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Writes any outstanding changes as soon as possible.
+	 */
+	public synchronized void flush() {
+		if (executor.isShutdown()) {
+			return;
+		}
+
+		if (pending != null && (scheduled == null || scheduled.getDelay(TimeUnit.MILLISECONDS) > 0)) {
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+
+			schedule(0);
+		}
+	}
+
+	/*private*/void save() {
+		ControlData target;
+		Map<String, Date> times;
+
+		synchronized (this) {
+			scheduled = null;
+
+			if ((times = pending) == null) {
+				return;
+			}
+
+			pending = null;
+			target = data;
+			writing = true;
+		}
+
+		IOException failure = null;
+
+		try {
+			target.save(target.getFile(), times);
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		synchronized (this) {
+			lastSaved = System.nanoTime();
+			writing = false;
+
+			if (failure != null) {
+				trouble = failure;
+
+				// keep the times for the next save, unless newer ones have come in
+				if (pending == null) {
+					pending = times;
+				} else {
+					for (Entry<String, Date> entry : times.entrySet()) {
+						if (!pending.containsKey(entry.getKey())) {
+							pending.put(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+
+				if (scheduled == null && !executor.isShutdown()) {
+					schedule(interval);
+				}
+			}
+
+			notifyAll();
+		}
+	}
+
+	private void schedule(long delay) {
+		scheduled = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,805 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Copies one file, on whatever thread calls {@link #run()}.
+ * <p>
+ * {@link #abort()} and {@link #halt()} take effect at once: besides being
+ * seen at the next {@link #proceed()}, they interrupt the thread running
+ * the copy (or verification), which gets it out of any wait and out of
+ * blocking channel I/O. An interrupted channel is closed, which is fine
+ * since the copy is stopping; the journal has what was safely written.
+ */
+final class Copier implements Runnable, CopyEngine.Monitor {
+
+	private static boolean DEBUG = false;
+
+	private static final int S_ABORTED = 0;
+
+	private static final int S_COPYING = 1;
+
+	private static final int S_HALTED = 3;
+
+	private static final int S_PAUSED = 2;
+
+	private static CopyEngine newEngine(File source, File destination, long length, Checksum checksum,
+			FanOutCopyEngine.Source shared, boolean sparse) {
+		if (shared != null) {
+			return new FanOutCopyEngine(shared, checksum, sparse);
+		}
+
+		CopyEngine remote = RemoteCopyEngine.forDestination(destination, checksum);
+
+		if (remote != null) {
+			return remote;
+		} else if (checksum != null || sparse) {
+			// only the stream engine sees the bytes it copies
+			return new StreamCopyEngine(Settings.getInt("verifyBufferSize", 0x100000), checksum, sparse);
+		}
+
+		String name = Settings.getString("engine", "channel");
+		int ranges = Settings.getInt("ranges", 1);
+
+		if (ranges > 1 && length >= Settings.getLong("rangeThreshold", 1L << 30)) {
+			return new RangeCopyEngine(ranges, Settings.getInt("rangeBufferSize", 0x100000));
+		} else if ("direct".equals(name)) {
+			return new DirectCopyEngine(source, destination, Settings.getInt("directBufferSize", 0x400000));
+		} else if ("pipelined".equals(name)) {
+			return new PipelinedCopyEngine(Settings.getInt("pipelineBuffers", 4), // <br/>
+					Settings.getInt("pipelineBufferSize", 0x100000));
+		} else if ("stream".equals(name)) {
+			return new StreamCopyEngine(Settings.getInt("bufferSize", 0x4000));
+		} else {
+			return new ChannelCopyEngine(Settings.getInt("chunkSize", 0x800000));
+		}
+	}
+
+	private final AtomicLong bytesCopied;
+
+	private long checksum;
+
+	private long copyBytes;
+
+	private long copyNanos;
+
+	private final File destination;
+
+	private final Journal journal;
+
+	private final long length;
+
+	private final Manifest manifest;
+
+	private final long modified;
+
+	private long pausedNanos;
+
+	private volatile boolean resumable;
+
+	private Thread runner;
+
+	private FanOutCopyEngine.Source shared;
+
+	private final File source;
+
+	private volatile int state;
+
+	private volatile boolean succeeded;
+
+	private final Throttle throttle;
+
+	private long throttledNanos;
+
+	private volatile String trouble;
+
+	private final Progress.Tracker tracker;
+
+	private volatile boolean unverified;
+
+	/**
+	 * @param manifest
+	 *            if not null, the copy is verified against a checksum of the
+	 *            source, which is looked up in or added to the manifest
+	 * @param throttle
+	 *            if not null, limits the rate of copying
+	 * @param tracker
+	 *            if not null, is told of progress
+	 */
+	public Copier(File source, File destination, Journal journal, Manifest manifest, Throttle throttle,
+			Progress.Tracker tracker) {
+		super();
+		this.bytesCopied = new AtomicLong();
+		this.checksum = 0;
+		this.copyBytes = 0;
+		this.copyNanos = 0;
+		this.destination = destination;
+		this.journal = journal;
+		this.length = source.length();
+		this.manifest = manifest;
+		this.modified = source.lastModified();
+		this.pausedNanos = 0;
+		this.resumable = false;
+		this.runner = null;
+		this.shared = null;
+		this.source = source;
+		this.state = S_COPYING;
+		this.succeeded = false;
+		this.throttle = throttle;
+		this.throttledNanos = 0;
+		this.tracker = tracker;
+		this.trouble = null;
+		this.unverified = false;
+	}
+
+	/**
+	 * Stops copying and discards the partial destination file.
+	 */
+	public synchronized void abort() {
+		state = S_ABORTED;
+		notifyAll();
+
+		if (runner != null) {
+			runner.interrupt();
+		}
+	}
+
+	public long bytesCopied() {
+		return bytesCopied.get();
+	}
+
+	@Override
+	public void copied(long count) {
+		bytesCopied.addAndGet(count);
+
+		if (tracker != null) {
+			tracker.copied(count);
+		}
+
+		waitForThrottle(count);
+	}
+
+	/**
+	 * @return the bytes written by the last {@link #run()}, not counting any
+	 *         copied before it resumed
+	 */
+	public long copyBytes() {
+		return copyBytes;
+	}
+
+	/**
+	 * @return the time the last {@link #run()} spent copying, not counting
+	 *         pauses and throttling
+	 */
+	public long copyNanos() {
+		return copyNanos;
+	}
+
+	public File getDestination() {
+		return destination;
+	}
+
+	public String getTrouble() {
+		return trouble;
+	}
+
+	/**
+	 * Stops copying but keeps the partial destination file and its journal
+	 * entry, so the copy can be resumed later.
+	 */
+	public synchronized void halt() {
+		if (state != S_ABORTED) {
+			state = S_HALTED;
+			notifyAll();
+
+			if (runner != null) {
+				runner.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the copy was stopped with {@link #halt()}, as when the
+	 *         batch is stopped
+	 */
+	public boolean halted() {
+		return state == S_HALTED;
+	}
+
+	/**
+	 * @return true if the copy stopped early leaving a partial destination
+	 *         file that a later run will resume
+	 */
+	public boolean isResumable() {
+		return resumable;
+	}
+
+	/**
+	 * @return true if the copy has been written but must be checked with
+	 *         {@link #verify()} before it counts as done
+	 */
+	public boolean isUnverified() {
+		return unverified;
+	}
+
+	/**
+	 * Makes the destination a hard link to {@code existing} instead of
+	 * copying, if it has the same content as the source. The two are compared
+	 * byte by byte, which counts as copying: it is throttled and shows as
+	 * progress, and can be paused and stopped.
+	 *
+	 * @return false if the content differs, the compare was stopped, or the
+	 *         link could not be made, for example because the file system
+	 *         doesn't support links or {@code existing} is on another device
+	 */
+	public boolean link(File existing) {
+		long started = System.nanoTime();
+		boolean linked = false;
+
+		if (destination.exists()) {
+			return false;
+		}
+
+		enter();
+
+		try {
+			if (isSame(existing)) {
+				destination.getParentFile().mkdirs();
+				Files.createLink(destination.toPath(), existing.toPath());
+				linked = true;
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			// copy it instead
+		} finally {
+			exit();
+		}
+
+		if (!linked) {
+			long compared = bytesCopied.getAndSet(0);
+
+			if (tracker != null) {
+				tracker.discarded(compared);
+			}
+
+			record("compare", started, compared);
+
+			return false;
+		}
+
+		succeeded = true;
+		record("link", started, length);
+
+		return true;
+	}
+
+	public synchronized void pause() {
+		if (state == S_COPYING) {
+			state = S_PAUSED;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public boolean proceed() {
+		int current = state;
+
+		// the usual case needs no lock
+		if (current != S_PAUSED) {
+			return current == S_COPYING;
+		}
+
+		if (throttle != null) {
+			throttle.idle();
+		}
+
+		return waitUnpaused() == S_COPYING;
+	}
+
+	@Override
+	public void run() {
+		RandomAccessFile in = null;
+		RandomAccessFile out = null;
+		long resumed = 0;
+		long started = System.nanoTime();
+
+		enter();
+
+		try {
+			long position = 0;
+
+			bytesCopied.set(0);
+			trouble = null;
+			unverified = false;
+
+			// stopped while comparing with content already at the destination
+			if (state == S_ABORTED || state == S_HALTED) {
+				return;
+			}
+
+			if (throttle != null) {
+				throttle.idle();
+			}
+
+			if (destination.exists()) {
+				Journal.Checkpoint checkpoint = journal != null ? journal.get(destination) : null;
+
+				if (checkpoint == null) {
+					trouble = "Destination file exists.";
+					return;
+				}
+
+				position = startPosition();
+			}
+
+			if (DEBUG) {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				return;
+			}
+
+			destination.getParentFile().mkdirs();
+
+			out = new RandomAccessFile(destination, "rw");
+			in = new RandomAccessFile(source, "r");
+
+			if (journal != null) {
+				journal.update(destination, position, length, modified);
+			}
+
+			boolean sparse = Settings.getBoolean("sparse", false);
+
+			allocate(out, position, sparse);
+			bytesCopied.set(position);
+			resumed = position;
+
+			if (tracker != null) {
+				tracker.resumed(position);
+			}
+
+			Checksum hash = null;
+
+			if (manifest != null) {
+				Long known = manifest.lookup(source, length, modified);
+
+				if (known != null) {
+					checksum = known.longValue();
+				} else {
+					hash = new CRC32();
+
+					// a resumed copy must account for what was copied before
+					if (!update(hash, in, 0, position)) {
+						return;
+					}
+				}
+			}
+
+			CopyEngine engine = newEngine(source, destination, length, hash, shared, sparse);
+
+			long checkpointSize = Settings.getLong("checkpointSize", 0x10000000);
+
+			while (position < length) {
+				long count = Math.min(checkpointSize, length - position);
+
+				engine.copy(in, out, position, count, this);
+
+				if (state == S_ABORTED || state == S_HALTED) {
+					break;
+				}
+
+				if (bytesCopied.get() != position + count) {
+					throw new IOException("Source file is shorter than expected.");
+				}
+
+				position += count;
+
+				if (journal != null && position < length) {
+					out.getChannel().force(false);
+					journal.update(destination, position, length, modified);
+				}
+			}
+
+			if (hash != null) {
+				checksum = hash.getValue();
+			}
+
+			if (manifest != null && state != S_ABORTED && state != S_HALTED) {
+				// keep the journal entry until the copy has been read back
+				out.getChannel().force(true);
+				if (journal != null) {
+					journal.update(destination, length, length, modified);
+				}
+				unverified = true;
+			}
+		} catch (IOException e) {
+			// stopping interrupts the copy, which is no trouble in itself
+			if (state == S_COPYING || state == S_PAUSED) {
+				trouble = e.getLocalizedMessage();
+			}
+		} finally {
+			exit();
+
+			if (shared != null) {
+				shared.leave(this);
+			}
+
+			Util.safeClose(in);
+			if (out != null && state == S_ABORTED) {
+				try {
+					out.setLength(0);
+				} catch (IOException e) {
+					// ignore - we're about to delete the file
+				}
+			}
+			Util.safeClose(out);
+
+			if (out == null) {
+				// nothing was written
+			} else if (state == S_ABORTED) {
+				if (destination.exists()) {
+					destination.delete();
+				}
+				forget();
+				if (trouble == null) {
+					trouble = "aborted";
+				}
+			} else if (state == S_HALTED) {
+				resumable = journal != null;
+				if (trouble == null) {
+					trouble = "halted";
+				}
+			} else if (trouble != null) {
+				resumable = journal != null;
+			} else if (!unverified) {
+				destination.setLastModified(modified);
+				forget();
+				succeeded = trouble == null;
+			}
+
+			if (out != null) {
+				copyBytes = bytesCopied.get() - resumed;
+				copyNanos = record("copy", started, copyBytes);
+			}
+		}
+	}
+
+	/**
+	 * Makes the copier read the source through {@code source}, which it
+	 * shares with the copiers of the same file to other destinations. Must
+	 * be called before {@link #run()}.
+	 */
+	public void share(FanOutCopyEngine.Source source) {
+		shared = source;
+	}
+
+	/**
+	 * @return true if the file was deliberately skipped with {@link #abort()}
+	 */
+	public boolean skipped() {
+		return state == S_ABORTED;
+	}
+
+	/**
+	 * @return where {@link #run()} will start copying: where the journal says
+	 *         an earlier copy of the same source got to, or 0
+	 */
+	public long startPosition() {
+		Journal.Checkpoint checkpoint = journal != null ? journal.get(destination) : null;
+
+		// restart from zero if the source changed since the checkpoint
+		if (checkpoint != null && checkpoint.matches(length, modified) && destination.exists()
+				&& destination.length() >= checkpoint.committed) {
+			return checkpoint.committed;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return true if the file was copied (and verified, if required)
+	 */
+	public boolean succeeded() {
+		return succeeded;
+	}
+
+	public synchronized void unpause() {
+		if (state == S_PAUSED) {
+			state = S_COPYING;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reads the destination back and compares its checksum with that of the
+	 * source. A good copy is then finished off; a bad one is deleted so the
+	 * next run copies it again.
+	 * <p>
+	 * This is meant to run on another thread, overlapping the next copy.
+	 */
+	public void verify() {
+		RandomAccessFile in = null;
+		Checksum hash = new CRC32();
+		boolean complete = false;
+		long started = System.nanoTime();
+
+		if (throttle != null) {
+			throttle.idle();
+		}
+
+		enter();
+
+		try {
+			in = new RandomAccessFile(destination, "r");
+			complete = update(hash, in, 0, length);
+		} catch (IOException e) {
+			if (state == S_COPYING || state == S_PAUSED) {
+				trouble = e.getLocalizedMessage();
+			}
+		} finally {
+			exit();
+			Util.safeClose(in);
+		}
+
+		unverified = false;
+		record("verify", started, complete ? length : 0);
+
+		if (state == S_ABORTED) {
+			destination.delete();
+			forget();
+			trouble = "aborted";
+		} else if (!complete) {
+			// the journal entry stands, so the next run verifies again
+			resumable = journal != null;
+			if (trouble == null) {
+				trouble = "halted";
+			}
+		} else if (hash.getValue() != checksum) {
+			destination.delete();
+			forget();
+			// don't trust a remembered checksum next time
+			manifest.remove(source);
+			trouble = "Verification failed: the copy differs from the source.";
+		} else {
+			destination.setLastModified(modified);
+			forget();
+			manifest.record(source, length, modified, checksum);
+			manifest.record(destination, length, modified, checksum);
+			succeeded = trouble == null;
+		}
+	}
+
+	/**
+	 * Sizes the destination before copying from {@code position}, as chosen
+	 * by {@code avi.copy.allocate}:
+	 * <dl>
+	 * <dt>length</dt>
+	 * <dd>sets the length at once (the default); on most file systems this
+	 * leaves a hole that is filled in by the copy, often in scattered
+	 * pieces</dd>
+	 * <dt>zero</dt>
+	 * <dd>writes zeros up to the length first, so the file system gives out
+	 * its space in as few pieces as it can; only files of at least
+	 * {@code avi.copy.allocateThreshold} bytes (1 GB) are worth the extra
+	 * writing, smaller ones are sized as with {@code length}</dd>
+	 * <dt>none</dt>
+	 * <dd>lets the file grow as it is written</dd>
+	 * </dl>
+	 * With {@code sparse}, anything past {@code position} is cut off and the
+	 * length set, so blocks of zeros the copy doesn't write stay holes.
+	 */
+	private void allocate(RandomAccessFile out, long position, boolean sparse) throws IOException {
+		String name = Settings.getString("allocate", "length");
+
+		if (sparse) {
+			out.setLength(position);
+			out.setLength(length);
+		} else if ("none".equals(name)) {
+			// a partial copy may have left more than the checkpoint covers
+			out.setLength(position);
+		} else if ("zero".equals(name) && length >= Settings.getLong("allocateThreshold", 1L << 30)) {
+			FileChannel channel = out.getChannel();
+			ByteBuffer zeros = ByteBuffer.allocate(Settings.getInt("verifyBufferSize", 0x100000));
+			long filled = Math.min(out.length(), length);
+
+			out.setLength(filled);
+
+			while (filled < length && proceed()) {
+				zeros.clear();
+
+				if (zeros.remaining() > length - filled) {
+					zeros.limit((int) (length - filled));
+				}
+
+				while (zeros.hasRemaining()) {
+					filled += channel.write(zeros, filled);
+				}
+			}
+		} else {
+			out.setLength(length);
+		}
+	}
+
+	/**
+	 * Makes the current thread the one interrupted by {@link #abort()} and
+	 * {@link #halt()}.
+	 */
+	private synchronized void enter() {
+		runner = Thread.currentThread();
+
+		// stopped before we started
+		if (state == S_ABORTED || state == S_HALTED) {
+			runner.interrupt();
+		}
+	}
+
+	/**
+	 * Stops interruptions and clears any left over, so the cleanup that
+	 * follows (and whatever the thread does next) isn't cut short.
+	 */
+	private void exit() {
+		synchronized (this) {
+			runner = null;
+		}
+
+		Thread.interrupted();
+	}
+
+	private void forget() {
+		if (journal != null) {
+			try {
+				journal.remove(destination);
+			} catch (IOException e) {
+				if (trouble == null) {
+					trouble = e.getLocalizedMessage();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares the source with {@code existing}, which has the same length,
+	 * counting the bytes compared as copied.
+	 *
+	 * @return false if they differ, or if stopped early by {@link #halt()} or
+	 *         {@link #abort()}
+	 */
+	private boolean isSame(File existing) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		RandomAccessFile other = null;
+
+		try {
+			other = new RandomAccessFile(existing, "r");
+
+			byte[] buffer = new byte[Settings.getInt("verifyBufferSize", 0x100000)];
+			byte[] otherBuffer = new byte[buffer.length];
+
+			for (long position = 0; position < length;) {
+				if (!proceed()) {
+					return false;
+				}
+
+				int len = (int) Math.min(buffer.length, length - position);
+
+				in.readFully(buffer, 0, len);
+				other.readFully(otherBuffer, 0, len);
+
+				for (int i = 0; i < len; ++i) {
+					if (buffer[i] != otherBuffer[i]) {
+						return false;
+					}
+				}
+
+				position += len;
+				copied(len);
+			}
+
+			return true;
+		} finally {
+			Util.safeClose(in);
+			Util.safeClose(other);
+		}
+	}
+
+	/**
+	 * @return the time taken, less any time spent paused or throttled
+	 */
+	private long record(String name, long started, long bytes) {
+		long paused;
+		long throttled;
+
+		synchronized (this) {
+			paused = pausedNanos;
+			throttled = throttledNanos;
+			pausedNanos = 0;
+			throttledNanos = 0;
+		}
+
+		long nanos = System.nanoTime() - started;
+
+		Metrics.record(name, destination.getPath(), nanos, bytes, paused, throttled);
+
+		return nanos - paused - throttled;
+	}
+
+	/**
+	 * Adds {@code count} bytes of {@code file} to {@code hash}.
+	 *
+	 * @return false if stopped early by {@link #halt()} or {@link #abort()}
+	 */
+	private boolean update(Checksum hash, RandomAccessFile file, long position, long count) throws IOException {
+		byte[] buffer = new byte[Settings.getInt("verifyBufferSize", 0x100000)];
+
+		file.seek(position);
+
+		while (count > 0) {
+			if (!proceed()) {
+				return false;
+			}
+
+			int len = file.read(buffer, 0, (int) Math.min(buffer.length, count));
+
+			if (len < 0) {
+				throw new IOException("File is shorter than expected.");
+			}
+
+			hash.update(buffer, 0, len);
+			count -= len;
+			waitForThrottle(len);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Waits as long as the throttle says, or until paused or stopped.
+	 */
+	private synchronized void waitForThrottle(long count) {
+		if (throttle == null) {
+			return;
+		}
+
+		long delay = throttle.charge(count);
+
+		if (delay > 0) {
+			long deadline = System.currentTimeMillis() + delay;
+			long waitStarted = System.nanoTime();
+
+			for (long remaining = delay; state == S_COPYING && remaining > 0;) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+
+			throttledNanos += System.nanoTime() - waitStarted;
+		}
+	}
+
+	private synchronized int waitUnpaused() {
+		long waitStarted = System.nanoTime();
+
+		while (state == S_PAUSED) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+
+		pausedNanos += System.nanoTime() - waitStarted;
+
+		return state;
+	}
+}
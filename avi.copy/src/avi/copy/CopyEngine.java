@@ -0,0 +1,29 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Moves a range of bytes from a source file to a destination file on behalf
+ * of a {@link Copier}.
+ */
+interface CopyEngine {
+
+	interface Monitor {
+
+		/**
+		 * Records that {@code count} more bytes have been written.
+		 */
+		void copied(long count);
+
+		/**
+		 * Blocks while the copy is paused.
+		 *
+		 * @return false if the copy has been aborted
+		 */
+		boolean proceed();
+	}
+
+	void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, Monitor monitor)
+			throws IOException;
+}
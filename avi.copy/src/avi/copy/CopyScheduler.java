@@ -0,0 +1,744 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies a list of work items using a pool of worker threads, running at
+ * most {@code avi.copy.deviceLimit} copies against any one device at a time.
+ * <p>
+ * Finished items are handed back (see {@link #drainFinished(Collection)})
+ * only once every item in the same folder with an earlier or equal
+ * modification time has also finished, so a folder's watermark never
+ * passes a file that is still waiting to be copied or was left partially
+ * copied.
+ * <p>
+ * If {@code avi.copy.verify} is set, each copy is read back and checked on
+ * a separate thread while the next copy proceeds; an item is only finished
+ * once its check has passed. Note that a copy read back straight away may
+ * well come from the operating system's cache rather than the disk.
+ * <p>
+ * All copies share one {@link Throttle}, if any limits are configured.
+ * <p>
+ * A file that is to go to mirror folders as well as the destination folder
+ * (see {@link Planner}) is copied to all of them at once, reading the
+ * source only once (see {@link FanOutCopyEngine}). Each destination has
+ * its own copier, progress and failures, but the file is only finished once
+ * every copy has succeeded.
+ * <p>
+ * Waiting items are taken in the {@link QueueOrder} given by
+ * {@code avi.copy.order}, skipping any whose devices are busy. Whatever the
+ * order, items are handed back by modification time as described above.
+ */
+final class CopyScheduler {
+
+	private static final class Folder {
+
+		final List<WorkItem> held;
+
+		final List<WorkItem> unfinished;
+
+		Folder() {
+			super();
+			this.held = new ArrayList<>();
+			this.unfinished = new ArrayList<>();
+		}
+
+		void finish(WorkItem item, Collection<WorkItem> released) {
+			long floor = Long.MAX_VALUE;
+
+			int index = 0;
+
+			while (index < held.size() && held.get(index).getModified() <= item.getModified()) {
+				index += 1;
+			}
+
+			unfinished.remove(item);
+			held.add(index, item);
+
+			for (WorkItem other : unfinished) {
+				floor = Math.min(floor, other.getModified());
+			}
+
+			// held is ordered by modification time
+			while (!held.isEmpty() && held.get(0).getModified() < floor) {
+				released.add(held.remove(0));
+			}
+		}
+	}
+
+	private static final class Task {
+
+		/**
+		 * One for each destination.
+		 */
+		final List<Copier> copiers;
+
+		final Set<Object> devices;
+
+		final WorkItem item;
+
+		final List<Progress.Tracker> trackers;
+
+		Task(WorkItem item, Set<Object> devices) {
+			super();
+			this.copiers = new ArrayList<>();
+			this.devices = devices;
+			this.item = item;
+			this.trackers = new ArrayList<>();
+		}
+
+		boolean isUnverified() {
+			for (Copier copier : copiers) {
+				if (copier.isUnverified()) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	private static final ExecutorService Verifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "verify");
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
+
+	/**
+	 * Runs the workers of all schedulers and the extra copiers of files going
+	 * to more than one destination. Threads are reused, so the number of
+	 * files costs nothing; the number running at once is bounded by
+	 * {@code avi.copy.workers} and the destinations of each file.
+	 */
+	private static final ExecutorService Workers = Executors.newCachedThreadPool(new ThreadFactory() {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "copy-" + count.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
+
+	/**
+	 * Waits for a copier started with {@link #Workers} to finish. Copiers
+	 * catch their own trouble, so there is nothing to pass on.
+	 */
+	private static void await(Future<?> copy) {
+		for (;;) {
+			try {
+				copy.get();
+				return;
+			} catch (InterruptedException e) {
+				// ignore
+			} catch (ExecutionException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the device holding {@code file}, or the nearest existing folder
+	 *         above it
+	 */
+	static Object deviceOf(File file) {
+		Path path = file.getAbsoluteFile().toPath();
+
+		// the destination folder may not exist yet
+		for (Path dir = path; dir != null; dir = dir.getParent()) {
+			if (Files.exists(dir)) {
+				try {
+					return Files.getFileStore(dir);
+				} catch (IOException e) {
+					break;
+				}
+			}
+		}
+
+		return path.getRoot();
+	}
+
+	private static int limitOf(Object device) {
+		int limit = Settings.getInt("deviceLimit", 1);
+
+		if (device instanceof FileStore) {
+			limit = Settings.getInt("deviceLimit." + ((FileStore) device).name(), limit);
+		}
+
+		return Math.max(1, limit);
+	}
+
+	private final List<Task> active;
+
+	private boolean aborted;
+
+	private final File destinationFolder;
+
+	private final Map<String, Set<Object>> devices;
+
+	private final Map<Object, Integer> deviceLoad;
+
+	private final List<String> failures;
+
+	private final List<WorkItem> finished;
+
+	private final Map<String, Folder> folders;
+
+	private final ContentIndex index;
+
+	private final Journal journal;
+
+	private final Manifest manifest;
+
+	private final QueueOrder order;
+
+	private boolean paused;
+
+	private final List<WorkItem> pending;
+
+	private final Planner.Plan plan;
+
+	private final Progress progress;
+
+	private final Set<String> queued;
+
+	private final DeviceRates rates;
+
+	private int running;
+
+	private final File sourceFolder;
+
+	/**
+	 * The destinations of each waiting item, by path name.
+	 */
+	private final Map<String, List<File>> targets;
+
+	private final Throttle throttle;
+
+	private final boolean verify;
+
+	private final List<Task> verifying;
+
+	private final int workerCount;
+
+	/**
+	 * Prepares to copy {@code work} between the folders of {@code plan}, using
+	 * its journal, manifest and content index.
+	 */
+	CopyScheduler(Planner.Plan plan, List<WorkItem> work) {
+		super();
+		this.active = new ArrayList<>();
+		this.aborted = false;
+		this.destinationFolder = plan.destinationFolder;
+		this.devices = new HashMap<>();
+		this.deviceLoad = new HashMap<>();
+		this.failures = new ArrayList<>();
+		this.finished = new ArrayList<>();
+		this.folders = new HashMap<>();
+		this.index = plan.index;
+		this.journal = plan.journal;
+		this.manifest = plan.manifest;
+		this.order = QueueOrder.fromSettings(plan.controlData.getPriorities());
+		this.paused = false;
+		this.pending = new ArrayList<>();
+		this.plan = plan;
+		this.progress = new Progress();
+		this.queued = new HashSet<>();
+		this.rates = plan.rates;
+		this.running = 0;
+		this.sourceFolder = plan.sourceFolder;
+		this.targets = new HashMap<>();
+		this.throttle = Throttle.fromSettings();
+		this.verify = Settings.getBoolean("verify", false);
+		this.verifying = new ArrayList<>();
+		this.workerCount = Math.max(1, Settings.getInt("workers", 4));
+
+		for (WorkItem item : work) {
+			enqueue(item);
+		}
+	}
+
+	/**
+	 * Stops all copying; files in progress are kept so they can be resumed.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+
+		for (Task task : active) {
+			for (Copier copier : task.copiers) {
+				copier.halt();
+			}
+		}
+
+		for (Task task : verifying) {
+			for (Copier copier : task.copiers) {
+				copier.halt();
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Waits at most {@code timeout} milliseconds for the workers to finish.
+	 */
+	public synchronized void awaitDone(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		for (long remaining; !isDone() && (remaining = deadline - System.currentTimeMillis()) > 0;) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Moves descriptions of the files that failed to copy into {@code sink}.
+	 */
+	public synchronized void drainFailures(Collection<String> sink) {
+		sink.addAll(failures);
+		failures.clear();
+	}
+
+	/**
+	 * Moves items whose completion may now be recorded into {@code sink}.
+	 */
+	public synchronized void drainFinished(Collection<WorkItem> sink) {
+		sink.addAll(finished);
+		finished.clear();
+	}
+
+	public Progress getProgress() {
+		return progress;
+	}
+
+	public synchronized boolean isDone() {
+		return running == 0 && verifying.isEmpty();
+	}
+
+	public synchronized void pause() {
+		paused = true;
+
+		for (Task task : active) {
+			for (Copier copier : task.copiers) {
+				copier.pause();
+			}
+		}
+
+		for (Task task : verifying) {
+			for (Copier copier : task.copiers) {
+				copier.pause();
+			}
+		}
+	}
+
+	/**
+	 * Aborts the copies of {@code item}, if it is being copied; the rest of
+	 * the queue is unaffected.
+	 */
+	public synchronized void skip(WorkItem item) {
+		for (Task task : active) {
+			if (task.item.getPathName().equals(item.getPathName())) {
+				for (Copier copier : task.copiers) {
+					copier.abort();
+				}
+			}
+		}
+	}
+
+	public synchronized void start() {
+		startWorkers();
+	}
+
+	/**
+	 * Adds more work, even while copying. Items already waiting or being
+	 * copied are ignored.
+	 *
+	 * @return the items added
+	 */
+	public synchronized List<WorkItem> submit(List<WorkItem> work) {
+		List<WorkItem> added = new ArrayList<>();
+
+		for (WorkItem item : work) {
+			if (enqueue(item)) {
+				added.add(item);
+			}
+		}
+
+		if (!added.isEmpty() && !aborted) {
+			startWorkers();
+			notifyAll();
+		}
+
+		return added;
+	}
+
+	public synchronized void unpause() {
+		paused = false;
+
+		for (Task task : active) {
+			for (Copier copier : task.copiers) {
+				copier.unpause();
+			}
+		}
+
+		for (Task task : verifying) {
+			for (Copier copier : task.copiers) {
+				copier.unpause();
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Frees the devices used by a copy that has stopped, handing it over for
+	 * verification if need be.
+	 */
+	private synchronized void complete(Task task) {
+		active.remove(task);
+
+		for (Progress.Tracker tracker : task.trackers) {
+			tracker.finish();
+		}
+
+		for (Object device : task.devices) {
+			deviceLoad.put(device, Integer.valueOf(deviceLoad.get(device).intValue() - 1));
+		}
+
+		if (task.isUnverified()) {
+			verifying.add(task);
+			Verifier.execute(newVerification(task));
+		} else {
+			finish(task);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Runs the copiers of one file, reading the source only once for those
+	 * that start at the same place. Copies resumed from different points
+	 * can't share the reads, since the shared blocks only move forward.
+	 */
+	private void copy(List<Copier> copiers) {
+		List<Future<?>> others = new ArrayList<>();
+		Map<Long, List<Copier>> groups = new LinkedHashMap<>();
+
+		for (Copier copier : copiers) {
+			Long position = Long.valueOf(copier.startPosition());
+			List<Copier> group = groups.get(position);
+
+			if (group == null) {
+				groups.put(position, group = new ArrayList<>());
+			}
+
+			group.add(copier);
+		}
+
+		for (List<Copier> group : groups.values()) {
+			if (group.size() > 1) {
+				FanOutCopyEngine.Source source = new FanOutCopyEngine.Source(group.size(), // <br/>
+						Settings.getInt("fanOutBufferSize", 0x100000), Settings.getInt("fanOutBuffers", 8));
+
+				for (Copier copier : group) {
+					copier.share(source);
+				}
+			}
+		}
+
+		for (Copier copier : copiers.subList(Math.min(1, copiers.size()), copiers.size())) {
+			others.add(Workers.submit(copier));
+		}
+
+		if (!copiers.isEmpty()) {
+			copiers.get(0).run();
+		}
+
+		// the file isn't done until all its copies are
+		for (Future<?> other : others) {
+			await(other);
+		}
+	}
+
+	private Set<Object> devicesOf(WorkItem item) {
+		String folderName = item.getFolderName();
+		Set<Object> result = devices.get(folderName);
+
+		if (result == null) {
+			result = new HashSet<>();
+			result.add(deviceOf(new File(sourceFolder, item.getPathName())));
+			result.add(deviceOf(new File(destinationFolder, item.getPathName())));
+
+			for (File mirrorFolder : plan.mirrorFolders) {
+				result.add(deviceOf(new File(mirrorFolder, item.getPathName())));
+			}
+
+			devices.put(folderName, result);
+		}
+
+		return result;
+	}
+
+	private boolean enqueue(WorkItem item) {
+		if (!queued.add(item.getPathName())) {
+			return false;
+		}
+
+		String folderName = item.getFolderName();
+		Folder folder = folders.get(folderName);
+
+		if (folder == null) {
+			folders.put(folderName, folder = new Folder());
+		}
+
+		List<File> destinations = plan.destinationsOf(item);
+
+		if (destinations.isEmpty()) {
+			// the copier reports that the destination exists
+			destinations.add(new File(destinationFolder, item.getPathName()));
+		}
+
+		folder.unfinished.add(item);
+		order.queued(item);
+		targets.put(item.getPathName(), destinations);
+
+		int position = Collections.binarySearch(pending, item, order);
+
+		pending.add(position < 0 ? -position - 1 : position, item);
+		progress.add(item.getLength() * destinations.size());
+
+		return true;
+	}
+
+	/*private*/synchronized void finish(Task task) {
+		String pathName = task.item.getPathName();
+		File primary = new File(destinationFolder, pathName);
+		boolean done = true;
+
+		queued.remove(pathName);
+		verifying.remove(task);
+
+		for (Copier copier : task.copiers) {
+			File destination = copier.getDestination();
+
+			if (copier.succeeded()) {
+				if (index != null && destination.equals(primary)) {
+					index.add(destination, destination.length(), destination.lastModified());
+				}
+			} else if (!copier.skipped()) {
+				done = false;
+
+				// a partial copy is kept for next time, but is still a failure
+				if (!copier.halted()) {
+					failures.add(String.format("%s: %s", // <br/>
+							destination.equals(primary) ? pathName : destination.getPath(), copier.getTrouble()));
+				}
+			}
+		}
+
+		// a failed or partial copy holds back its folder's watermark
+		if (done) {
+			folders.get(task.item.getFolderName()).finish(task.item, finished);
+		}
+		notifyAll();
+	}
+
+	private synchronized boolean isAvailable(Set<Object> wanted) {
+		for (Object device : wanted) {
+			Integer load = deviceLoad.get(device);
+
+			if (load != null && load.intValue() >= limitOf(device)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Links a copy to the destination folder to identical content already
+	 * there, if the content index knows of any.
+	 *
+	 * @return true if linked
+	 */
+	private boolean link(WorkItem item, Copier copier) {
+		if (index == null || !copier.getDestination().equals(new File(destinationFolder, item.getPathName()))) {
+			return false;
+		}
+
+		File source = new File(sourceFolder, item.getPathName());
+
+		for (File existing : index.find(source, item.getLength(), item.getModified(), manifest, journal)) {
+			if (copier.link(existing)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private Runnable newVerification(final Task task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (Copier copier : task.copiers) {
+						if (copier.isUnverified()) {
+							copier.verify();
+						}
+					}
+				} finally {
+					finish(task);
+					saveIndexes();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the manifest, content index and device rates once all work is
+	 * done.
+	 */
+	/*private*/void saveIndexes() {
+		if (!isDone()) {
+			return;
+		}
+
+		try {
+			manifest.save();
+
+			if (index != null) {
+				index.save();
+			}
+
+			rates.save();
+		} catch (IOException e) {
+			synchronized (this) {
+				failures.add("Can't save indexes: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	private void startWorkers() {
+		int count = Math.min(workerCount, pending.size() + active.size()) - running;
+
+		for (int i = 0; i < count; ++i) {
+			running += 1;
+			Workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+		}
+	}
+
+	private synchronized Task take() {
+		for (;;) {
+			if (aborted || pending.isEmpty()) {
+				return null;
+			}
+
+			if (!paused) {
+				for (WorkItem item : pending) {
+					Set<Object> wanted = devicesOf(item);
+
+					if (isAvailable(wanted)) {
+						String pathName = item.getPathName();
+						File source = new File(sourceFolder, pathName);
+						Task task = new Task(item, wanted);
+
+						for (File destination : targets.remove(pathName)) {
+							Progress.Tracker tracker = progress.track(item, destination);
+
+							task.copiers.add(new Copier(source, destination, journal, verify ? manifest : null,
+									throttle, tracker));
+							task.trackers.add(tracker);
+						}
+
+						for (Object device : wanted) {
+							Integer load = deviceLoad.get(device);
+
+							deviceLoad.put(device, Integer.valueOf(load == null ? 1 : load.intValue() + 1));
+						}
+
+						pending.remove(item);
+						order.removed(item);
+						active.add(task);
+
+						return task;
+					}
+				}
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	/*private*/void work() {
+		try {
+			Task task;
+
+			while ((task = take()) != null) {
+				try {
+					List<Copier> copiers = new ArrayList<>();
+
+					for (Copier copier : task.copiers) {
+						if (!link(task.item, copier)) {
+							copiers.add(copier);
+						}
+					}
+
+					copy(copiers);
+
+					for (Copier copier : copiers) {
+						rates.record(String.valueOf(deviceOf(copier.getDestination())), // <br/>
+								copier.copyBytes(), copier.copyNanos());
+					}
+				} finally {
+					complete(task);
+				}
+			}
+		} finally {
+			synchronized (this) {
+				running -= 1;
+				notifyAll();
+			}
+			saveIndexes();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Remembers how fast copies to each device have gone, so the time a batch
+ * will take can be estimated before it starts (see {@link Estimate}). Each
+ * line holds the bytes copied, the nanoseconds spent copying them (not
+ * counting pauses and throttling) and the device, separated by tabs.
+ * <p>
+ * Only the most recent {@code avi.copy.rateWindow} seconds of copying
+ * (an hour by default) count: older measurements are scaled down as new
+ * ones come in, so the rate follows a disk that gets slower as it fills.
+ */
+final class DeviceRates {
+
+	private static final class Rate {
+
+		long bytes;
+
+		long nanos;
+
+		Rate(long bytes, long nanos) {
+			super();
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+	}
+
+	static DeviceRates open(File file) throws IOException {
+		DeviceRates rates = new DeviceRates(file);
+
+		for (String[] fields : Util.readFields(file, 3)) {
+			try {
+				long bytes = Long.parseLong(fields[0]);
+				long nanos = Long.parseLong(fields[1]);
+
+				if (bytes > 0 && nanos > 0) {
+					rates.rates.put(fields[2], new Rate(bytes, nanos));
+				}
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+
+		return rates;
+	}
+
+	private boolean dirty;
+
+	private final File file;
+
+	private final Map<String, Rate> rates;
+
+	private DeviceRates(File file) {
+		super();
+		this.dirty = false;
+		this.file = file;
+		this.rates = new TreeMap<>();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the bytes per second copied to {@code device}, or -1 if no copy
+	 *         to it has been measured
+	 */
+	public synchronized double rateOf(String device) {
+		Rate rate = rates.get(device);
+
+		return rate != null ? rate.bytes * 1e9 / rate.nanos : -1;
+	}
+
+	/**
+	 * Adds a copy of {@code bytes} to {@code device} that took {@code nanos}
+	 * nanoseconds.
+	 */
+	public synchronized void record(String device, long bytes, long nanos) {
+		if (bytes <= 0 || nanos <= 0) {
+			return;
+		}
+
+		Rate rate = rates.get(device);
+		long window = Settings.getLong("rateWindow", 3600) * 1000000000L;
+
+		if (rate == null) {
+			rates.put(device, rate = new Rate(0, 0));
+		}
+
+		rate.bytes += bytes;
+		rate.nanos += nanos;
+
+		if (rate.nanos > window && window > 0) {
+			double scale = (double) window / rate.nanos;
+
+			rate.bytes = Math.max(1, (long) (rate.bytes * scale));
+			rate.nanos = window;
+		}
+
+		dirty = true;
+	}
+
+	/**
+	 * Writes the rates if any have been recorded since they were read or last
+	 * saved.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+
+		List<String> lines = new ArrayList<>();
+
+		for (Entry<String, Rate> entry : rates.entrySet()) {
+			Rate rate = entry.getValue();
+
+			lines.add(String.format("%d\t%d\t%s", // <br/>
+					Long.valueOf(rate.bytes), // <br/>
+					Long.valueOf(rate.nanos), // <br/>
+					entry.getKey()));
+		}
+
+		Util.writeLines(file, lines);
+		dirty = false;
+	}
+}
@@ -0,0 +1,172 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies through large pooled direct buffers, keeping the data out of the
+ * Java heap.
+ * <p>
+ * Where the runtime supports it (Java 10 and later), both files are also
+ * opened with O_DIRECT, so the copy neither fills the page cache nor
+ * evicts what is already there. O_DIRECT needs buffers, positions and
+ * lengths aligned to the block size, so an unaligned tail goes through the
+ * ordinary channels. Set {@code avi.copy.directIO} to false to keep using
+ * the page cache.
+ */
+final class DirectCopyEngine implements CopyEngine {
+
+	private static final int DefaultBlockSize = 4096;
+
+	private static final OpenOption Direct = findDirect();
+
+	private static final Method GetBlockSize = findGetBlockSize();
+
+	private static int blockSizeOf(File file) {
+		try {
+			FileStore store = Files.getFileStore(file.toPath());
+
+			return ((Number) GetBlockSize.invoke(store)).intValue();
+		} catch (IOException | ReflectiveOperationException | RuntimeException e) {
+			return DefaultBlockSize;
+		}
+	}
+
+	private static OpenOption findDirect() {
+		try {
+			Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+
+			for (Object constant : type.getEnumConstants()) {
+				if ("DIRECT".equals(((Enum<?>) constant).name())) {
+					return (OpenOption) constant;
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			// not available
+		}
+
+		return null;
+	}
+
+	private static Method findGetBlockSize() {
+		try {
+			return FileStore.class.getMethod("getBlockSize");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static FileChannel openDirect(File file, OpenOption mode) {
+		try {
+			return FileChannel.open(file.toPath(), mode, Direct);
+		} catch (IOException | UnsupportedOperationException e) {
+			// for example, tmpfs doesn't support O_DIRECT
+			return null;
+		}
+	}
+
+	private final int bufferSize;
+
+	private final File destination;
+
+	private final File source;
+
+	/**
+	 * @param bufferSize
+	 *            the size of each buffer, between 1 and 16 MB
+	 */
+	DirectCopyEngine(File source, File destination, int bufferSize) {
+		super();
+		this.bufferSize = Math.max(0x100000, Math.min(bufferSize, 0x1000000));
+		this.destination = destination;
+		this.source = source;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, Monitor monitor)
+			throws IOException {
+		FileChannel directReader = null;
+		FileChannel directWriter = null;
+		int alignment = 1;
+
+		if (Direct != null && GetBlockSize != null && BufferPool.canAlign() && Settings.getBoolean("directIO", true)) {
+			alignment = Math.max(blockSizeOf(source), blockSizeOf(destination));
+
+			if (position % alignment == 0 && bufferSize % alignment == 0) {
+				directReader = openDirect(source, StandardOpenOption.READ);
+				directWriter = openDirect(destination, StandardOpenOption.WRITE);
+			}
+
+			if (directReader == null || directWriter == null) {
+				Util.safeClose(directReader);
+				Util.safeClose(directWriter);
+				directReader = null;
+				directWriter = null;
+				alignment = 1;
+			}
+		}
+
+		ByteBuffer buffer = BufferPool.acquire(bufferSize, alignment);
+
+		try {
+			transfer(directReader != null ? directReader : in.getChannel(), // <br/>
+					directWriter != null ? directWriter : out.getChannel(), // <br/>
+					in.getChannel(), out.getChannel(), // <br/>
+					buffer, alignment, position, count, monitor);
+		} finally {
+			BufferPool.release(buffer, alignment);
+			Util.safeClose(directReader);
+			Util.safeClose(directWriter);
+		}
+	}
+
+	private void transfer(FileChannel reader, FileChannel writer, FileChannel tailReader, FileChannel tailWriter,
+			ByteBuffer buffer, int alignment, long position, long count, Monitor monitor) throws IOException {
+		while (count > 0) {
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			// whole blocks go through the direct channels, the rest doesn't
+			long wanted = Math.min(buffer.capacity(), count);
+			long aligned = wanted / alignment * alignment;
+			boolean direct = aligned != 0 && position % alignment == 0;
+
+			buffer.clear();
+			buffer.limit((int) (direct ? aligned : wanted));
+
+			int len = (direct ? reader : tailReader).read(buffer, position);
+
+			if (len <= 0) {
+				break;
+			}
+
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			if (len % alignment != 0) {
+				// a short read leaves an unaligned length
+				direct = false;
+			}
+
+			buffer.flip();
+
+			for (long at = position; buffer.hasRemaining();) {
+				at += (direct ? writer : tailWriter).write(buffer, at);
+			}
+
+			position += len;
+			count -= len;
+			monitor.copied(len);
+		}
+	}
+}
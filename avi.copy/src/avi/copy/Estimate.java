@@ -0,0 +1,242 @@
+package avi.copy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * What a plan will take, worked out before it is started: for the
+ * destination folder and each mirror, the bytes to copy, the space free and
+ * the time needed at the speed measured for its device in earlier batches
+ * (see {@link DeviceRates}); and the same for each folder of the control
+ * file.
+ * <p>
+ * Destinations are copied to at once, so a batch takes as long as its
+ * slowest device; destinations on the same device share its speed and its
+ * free space. Partly copied files count in full. A time is -1 if it
+ * depends on a device no copy has been measured to yet.
+ */
+final class Estimate {
+
+	static final class Folder {
+
+		final long bytes;
+
+		final int files;
+
+		final String name;
+
+		final long seconds;
+
+		Folder(String name, int files, long bytes, long seconds) {
+			super();
+			this.bytes = bytes;
+			this.files = files;
+			this.name = name;
+			this.seconds = seconds;
+		}
+	}
+
+	static final class Target {
+
+		final long bytes;
+
+		final String device;
+
+		final int files;
+
+		/**
+		 * True if the device has room for everything to be copied to it.
+		 */
+		final boolean fits;
+
+		final File folder;
+
+		final long freeBytes;
+
+		/**
+		 * Bytes per second, or -1 if not known.
+		 */
+		final double rate;
+
+		final long seconds;
+
+		Target(File folder, String device, int files, long bytes, long freeBytes, boolean fits, double rate,
+				long seconds) {
+			super();
+			this.bytes = bytes;
+			this.device = device;
+			this.files = files;
+			this.fits = fits;
+			this.folder = folder;
+			this.freeBytes = freeBytes;
+			this.rate = rate;
+			this.seconds = seconds;
+		}
+	}
+
+	private static void add(Map<String, Long> totals, String key, long amount) {
+		Long total = totals.get(key);
+
+		totals.put(key, Long.valueOf(total != null ? total.longValue() + amount : amount));
+	}
+
+	private static String orNull(double value) {
+		return value >= 0 ? String.valueOf((long) value) : "null";
+	}
+
+	private static String quote(String value) {
+		return value != null ? Json.quote(value) : "null";
+	}
+
+	/**
+	 * @return the time to copy the bytes to each device, or -1 if any is
+	 *         unknown
+	 */
+	private static long secondsOf(Map<String, Long> bytes, Map<String, Double> rates) {
+		long result = 0;
+
+		for (Entry<String, Long> entry : bytes.entrySet()) {
+			double rate = rates.get(entry.getKey()).doubleValue();
+
+			if (rate <= 0) {
+				return -1;
+			}
+
+			result = Math.max(result, (long) Math.ceil(entry.getValue().longValue() / rate));
+		}
+
+		return result;
+	}
+
+	final List<Folder> folders;
+
+	/**
+	 * The time to copy the whole plan, or -1 if not known.
+	 */
+	final long seconds;
+
+	/**
+	 * The destination folder, then the mirrors.
+	 */
+	final List<Target> targets;
+
+	Estimate(Planner.Plan plan) {
+		super();
+
+		List<File> targetFolders = new ArrayList<>();
+		List<String> devices = new ArrayList<>();
+		Map<String, Double> rates = new HashMap<>();
+
+		targetFolders.add(plan.destinationFolder);
+		targetFolders.addAll(plan.mirrorFolders);
+
+		for (File folder : targetFolders) {
+			String device = String.valueOf(CopyScheduler.deviceOf(folder));
+
+			devices.add(device);
+			rates.put(device, Double.valueOf(plan.rates.rateOf(device)));
+		}
+
+		int[] targetFiles = new int[targetFolders.size()];
+		long[] targetBytes = new long[targetFolders.size()];
+		Map<String, Long> deviceBytes = new HashMap<>();
+		Map<String, List<WorkItem>> byFolder = new LinkedHashMap<>();
+
+		for (WorkItem item : plan.work) {
+			List<WorkItem> items = byFolder.get(item.getFolderName());
+
+			if (items == null) {
+				byFolder.put(item.getFolderName(), items = new ArrayList<>());
+			}
+
+			items.add(item);
+		}
+
+		this.folders = new ArrayList<>(byFolder.size());
+
+		for (Entry<String, List<WorkItem>> entry : byFolder.entrySet()) {
+			Map<String, Long> folderBytes = new HashMap<>();
+			long bytes = 0;
+
+			for (WorkItem item : entry.getValue()) {
+				List<File> destinations = plan.destinationsOf(item);
+
+				bytes += item.getLength();
+
+				for (int i = 0; i < targetFolders.size(); ++i) {
+					if (destinations.contains(new File(targetFolders.get(i), item.getPathName()))) {
+						targetFiles[i] += 1;
+						targetBytes[i] += item.getLength();
+						add(deviceBytes, devices.get(i), item.getLength());
+						add(folderBytes, devices.get(i), item.getLength());
+					}
+				}
+			}
+
+			folders.add(new Folder(entry.getKey(), entry.getValue().size(), bytes, secondsOf(folderBytes, rates)));
+		}
+
+		this.seconds = secondsOf(deviceBytes, rates);
+		this.targets = new ArrayList<>(targetFolders.size());
+
+		for (int i = 0; i < targetFolders.size(); ++i) {
+			String device = devices.get(i);
+			File folder = targetFolders.get(i);
+			double rate = rates.get(device).doubleValue();
+			Long needed = deviceBytes.get(device);
+			long freeBytes = folder.getUsableSpace();
+			long time = needed == null ? 0 : rate > 0 ? (long) Math.ceil(needed.longValue() / rate) : -1;
+
+			targets.add(new Target(folder, device, targetFiles[i], targetBytes[i], freeBytes, // <br/>
+					needed == null || needed.longValue() <= freeBytes, rate, time));
+		}
+	}
+
+	/**
+	 * @return true if every destination has room for its files
+	 */
+	boolean fits() {
+		for (Target target : targets) {
+			if (!target.fits) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the estimate as a single JSON object
+	 */
+	String toJson() {
+		StringBuilder buffer = new StringBuilder();
+
+		buffer.append(String.format("{\"event\":\"estimate\",\"seconds\":%s,\"fits\":%b,\"destinations\":[", // <br/>
+				orNull(seconds), Boolean.valueOf(fits())));
+
+		for (Target target : targets) {
+			buffer.append(target == targets.get(0) ? "" : ",");
+			buffer.append(String.format("{\"folder\":%s,\"device\":%s,\"files\":%d,\"bytes\":%d,\"freeBytes\":%d," // <br/>
+					+ "\"fits\":%b,\"rate\":%s,\"seconds\":%s}", // <br/>
+					Json.quote(target.folder.getPath()), Json.quote(target.device), // <br/>
+					Integer.valueOf(target.files), Long.valueOf(target.bytes), Long.valueOf(target.freeBytes), // <br/>
+					Boolean.valueOf(target.fits), orNull(target.rate), orNull(target.seconds)));
+		}
+
+		buffer.append("],\"folders\":[");
+
+		for (Folder folder : folders) {
+			buffer.append(folder == folders.get(0) ? "" : ",");
+			buffer.append(String.format("{\"name\":%s,\"files\":%d,\"bytes\":%d,\"seconds\":%s}", // <br/>
+					quote(folder.name), Integer.valueOf(folder.files), Long.valueOf(folder.bytes), // <br/>
+					orNull(folder.seconds)));
+		}
+
+		return buffer.append("]}").toString();
+	}
+}
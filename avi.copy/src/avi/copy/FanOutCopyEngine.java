@@ -0,0 +1,215 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Copies a source to one of several destinations at once, reading the
+ * source only once: each block is read into a ring of buffers shared by the
+ * copiers (see {@link Source}) and written out by each of them in turn.
+ * <p>
+ * A copier that stops, for whatever reason, leaves the source so the others
+ * carry on without it.
+ */
+final class FanOutCopyEngine implements CopyEngine {
+
+	private static final class Block {
+
+		final byte[] data;
+
+		int length;
+
+		long number;
+
+		boolean ready;
+
+		Block(int size) {
+			super();
+			this.data = new byte[size];
+			this.length = 0;
+			this.number = -1;
+			this.ready = false;
+		}
+	}
+
+	/**
+	 * The source shared by a group of copiers. Whichever copier first needs a
+	 * block reads it; a buffer is only reused once every copier still
+	 * copying has written the block it holds, so the slowest destination
+	 * sets the pace.
+	 */
+	static final class Source {
+
+		private final Block[] blocks;
+
+		private final int blockSize;
+
+		private int left;
+
+		private final int parties;
+
+		private final Map<Object, Long> positions;
+
+		/**
+		 * @param parties
+		 *            the number of copiers sharing the source; nothing is read
+		 *            until each has either asked for a block or left
+		 */
+		Source(int parties, int blockSize, int blockCount) {
+			super();
+			this.blocks = new Block[Math.max(2, blockCount)];
+			this.blockSize = blockSize;
+			this.left = 0;
+			this.parties = parties;
+			this.positions = new HashMap<>();
+
+			for (int i = 0; i < blocks.length; ++i) {
+				blocks[i] = new Block(blockSize);
+			}
+		}
+
+		/**
+		 * Takes {@code copier} out of the group, whether or not it has
+		 * finished.
+		 */
+		public synchronized void leave(Object copier) {
+			positions.remove(copier);
+			left += 1;
+			notifyAll();
+		}
+
+		/**
+		 * @return the block holding {@code position}, reading it from
+		 *         {@code in} if need be, which stays valid until
+		 *         {@code copier} asks for another
+		 */
+		/*private*/Block acquire(Object copier, long position, RandomAccessFile in) throws IOException {
+			long number = position / blockSize;
+			Block block = blocks[(int) (number % blocks.length)];
+
+			synchronized (this) {
+				positions.put(copier, Long.valueOf(position));
+				notifyAll();
+
+				for (;;) {
+					if (block.number == number && block.ready) {
+						return block;
+					} else if (block.number > number) {
+						throw new IOException("The shared source has moved on.");
+					} else if (block.number < number && isStarted() && isFree(block)) {
+						block.number = number;
+						block.ready = false;
+						break;
+					}
+
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+
+			int length = 0;
+
+			try {
+				in.seek(number * blockSize);
+
+				for (int len; length < blockSize && (len = in.read(block.data, length, blockSize - length)) > 0;) {
+					length += len;
+				}
+			} finally {
+				synchronized (this) {
+					if (block.number == number) {
+						block.length = length;
+						block.ready = true;
+					}
+					notifyAll();
+				}
+			}
+
+			return block;
+		}
+
+		private boolean isFree(Block block) {
+			long end = (block.number + 1) * blockSize;
+
+			if (block.number >= 0 && !block.ready) {
+				return false;
+			}
+
+			for (Long position : positions.values()) {
+				if (position.longValue() < end) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private boolean isStarted() {
+			return positions.size() + left >= parties;
+		}
+	}
+
+	private final Checksum checksum;
+
+	private final Source source;
+
+	private final boolean sparse;
+
+	/**
+	 * @param checksum
+	 *            if not null, the source bytes are added to it as they pass
+	 *            through
+	 * @param sparse
+	 *            if true, blocks of zeros are not written
+	 */
+	FanOutCopyEngine(Source source, Checksum checksum, boolean sparse) {
+		super();
+		this.checksum = checksum;
+		this.source = source;
+		this.sparse = sparse;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, Monitor monitor)
+			throws IOException {
+		out.seek(position);
+
+		while (count > 0) {
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			Block block = source.acquire(monitor, position, in);
+			int offset = (int) (position - block.number * source.blockSize);
+			int len = (int) Math.min(block.length - offset, count);
+
+			if (len <= 0) {
+				break;
+			}
+
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			if (checksum != null) {
+				checksum.update(block.data, offset, len);
+			}
+
+			if (sparse) {
+				StreamCopyEngine.write(out, position, block.data, offset, len, true);
+			} else {
+				out.write(block.data, offset, len);
+			}
+			position += len;
+			count -= len;
+			monitor.copied(len);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Lists folders with java.nio.file, reading the attributes of each entry at
+ * most once. Where the platform returns attributes with the directory
+ * listing (Windows), walkFileTree passes them through without another
+ * system call.
+ */
+final class FolderScanner {
+
+	/**
+	 * @return the names of the entries in {@code folder}, which is empty if
+	 *         the folder does not exist
+	 */
+	static Set<String> listNames(Path folder) throws IOException {
+		Set<String> names = new HashSet<>();
+
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+			for (Path entry : entries) {
+				names.add(entry.getFileName().toString());
+			}
+		} catch (NoSuchFileException | NotDirectoryException e) {
+			return Collections.emptySet();
+		}
+
+		return names;
+	}
+
+	/**
+	 * @return a work item for each regular file in {@code folder} whose name
+	 *         matches {@code pattern}; symbolic links, to the folder or to
+	 *         files in it, are followed as {@link java.io.File} does
+	 */
+	static List<WorkItem> listWork(Path folder, final String folderName, final Pattern pattern)
+			throws IOException {
+		final List<WorkItem> items = new ArrayList<>();
+
+		if (!Files.isDirectory(folder)) {
+			return items;
+		}
+
+		Files.walkFileTree(folder, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				String name = file.getFileName().toString();
+
+				if (attributes.isRegularFile() && pattern.matcher(name).matches()) {
+					items.add(new WorkItem(folderName + '/' + name, // <br/>
+							attributes.size(), attributes.lastModifiedTime().toMillis()));
+				}
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// skip entries that vanish or can't be read
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return items;
+	}
+
+	private FolderScanner() {
+		super();
+	}
+}
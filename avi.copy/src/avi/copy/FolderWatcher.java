@@ -0,0 +1,192 @@
+package avi.copy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Watches source folders for new or growing recordings and reports each one
+ * as a work item once its size and modification time have not changed for
+ * {@code avi.copy.settleSeconds} seconds.
+ * <p>
+ * Files found by a full scan may still be being written too; those not
+ * modified for the settle time can be copied at once (see
+ * {@link #isSettled(WorkItem, long)}), the rest are handed to
+ * {@link #hold(WorkItem)} to be reported like any other once they settle.
+ */
+final class FolderWatcher implements Closeable {
+
+	private static final class Candidate {
+
+		final String pathName;
+
+		long length;
+
+		long modified;
+
+		long stableSince;
+
+		Candidate(String pathName) {
+			super();
+			this.length = -1;
+			this.modified = -1;
+			this.pathName = pathName;
+			this.stableSince = 0;
+		}
+	}
+
+	/**
+	 * @return true if {@code item} hasn't been modified for
+	 *         {@code avi.copy.settleSeconds} seconds before {@code now}
+	 */
+	static boolean isSettled(WorkItem item, long now) {
+		return now - item.getModified() >= Settings.getLong("settleSeconds", 30) * 1000;
+	}
+
+	private final Map<Path, Candidate> candidates;
+
+	private final Map<WatchKey, String> folders;
+
+	private boolean overflowed;
+
+	private final Pattern pattern;
+
+	private final long settleTime;
+
+	private final WatchService service;
+
+	private final File srcDir;
+
+	/**
+	 * Watches each folder named in {@code folderNames} that exists under
+	 * {@code srcDir}.
+	 */
+	FolderWatcher(File srcDir, Collection<String> folderNames, Pattern pattern) throws IOException {
+		super();
+		this.candidates = new HashMap<>();
+		this.folders = new HashMap<>();
+		this.overflowed = false;
+		this.pattern = pattern;
+		this.service = FileSystems.getDefault().newWatchService();
+		this.settleTime = Settings.getLong("settleSeconds", 30) * 1000;
+		this.srcDir = srcDir;
+
+		for (String folderName : folderNames) {
+			Path folder = new File(srcDir, folderName).toPath();
+
+			if (Files.isDirectory(folder)) {
+				WatchKey key = folder.register(service, // <br/>
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+				folders.put(key, folderName);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+
+	/**
+	 * Watches {@code item}, found by a scan, until it settles.
+	 */
+	public void hold(WorkItem item) {
+		Path file = new File(srcDir, item.getPathName()).toPath();
+
+		if (!candidates.containsKey(file)) {
+			candidates.put(file, new Candidate(item.getPathName()));
+		}
+	}
+
+	/**
+	 * @return true (once) if events were lost since the last call, in which
+	 *         case the folders should be scanned in full
+	 */
+	public boolean overflowed() {
+		boolean result = overflowed;
+
+		overflowed = false;
+
+		return result;
+	}
+
+	/**
+	 * Processes pending events without blocking.
+	 *
+	 * @return files that have stopped changing
+	 */
+	public List<WorkItem> poll() {
+		WatchKey key;
+
+		while ((key = service.poll()) != null) {
+			String folderName = folders.get(key);
+			Path folder = (Path) key.watchable();
+
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					overflowed = true;
+					continue;
+				}
+
+				Path file = folder.resolve((Path) event.context());
+				String name = file.getFileName().toString();
+
+				if (folderName != null && pattern.matcher(name).matches() && !candidates.containsKey(file)) {
+					candidates.put(file, new Candidate(folderName + '/' + name));
+				}
+			}
+
+			if (!key.reset()) {
+				// the folder is gone
+				folders.remove(key);
+			}
+		}
+
+		List<WorkItem> settled = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Map.Entry<Path, Candidate>> i = candidates.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Path, Candidate> entry = i.next();
+			Candidate candidate = entry.getValue();
+			BasicFileAttributes attributes;
+
+			try {
+				attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+			} catch (IOException e) {
+				// deleted or renamed before it settled
+				i.remove();
+				continue;
+			}
+
+			long length = attributes.size();
+			long modified = attributes.lastModifiedTime().toMillis();
+
+			if (length != candidate.length || modified != candidate.modified) {
+				candidate.length = length;
+				candidate.modified = modified;
+				candidate.stableSince = now;
+			} else if (now - candidate.stableSince >= settleTime && attributes.isRegularFile()) {
+				settled.add(new WorkItem(candidate.pathName, length, modified));
+				i.remove();
+			}
+		}
+
+		return settled;
+	}
+}
@@ -0,0 +1,110 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Remembers how much of each partially copied destination file is known to
+ * be safely on disk, so an interrupted copy can be resumed. Each line holds
+ * the committed byte count, the source length and modification time, and
+ * the destination path, separated by tabs.
+ */
+final class Journal {
+
+	static final class Checkpoint {
+
+		final long committed;
+
+		final long length;
+
+		final long modified;
+
+		Checkpoint(long committed, long length, long modified) {
+			super();
+			this.committed = committed;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		/**
+		 * @return true if this checkpoint was taken while copying the given
+		 *         version of the source
+		 */
+		boolean matches(long sourceLength, long sourceModified) {
+			return length == sourceLength && modified == sourceModified;
+		}
+	}
+
+	static Journal open(File file) throws IOException {
+		Journal journal = new Journal(file);
+
+		for (String[] fields : Util.readFields(file, 4)) {
+			try {
+				long committed = Long.parseLong(fields[0]);
+				long length = Long.parseLong(fields[1]);
+				long modified = Long.parseLong(fields[2]);
+
+				journal.checkpoints.put(fields[3], new Checkpoint(committed, length, modified));
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+
+		return journal;
+	}
+
+	private final Map<String, Checkpoint> checkpoints;
+
+	private final File file;
+
+	private Journal(File file) {
+		super();
+		this.checkpoints = new TreeMap<>();
+		this.file = file;
+	}
+
+	public synchronized boolean contains(File destination) {
+		return checkpoints.containsKey(destination.getAbsolutePath());
+	}
+
+	public synchronized Checkpoint get(File destination) {
+		return checkpoints.get(destination.getAbsolutePath());
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void remove(File destination) throws IOException {
+		if (checkpoints.remove(destination.getAbsolutePath()) != null) {
+			save();
+		}
+	}
+
+	public synchronized void update(File destination, long committed, long length, long modified)
+			throws IOException {
+		checkpoints.put(destination.getAbsolutePath(), new Checkpoint(committed, length, modified));
+		save();
+	}
+
+	private void save() throws IOException {
+		List<String> lines = new ArrayList<>();
+
+		for (Entry<String, Checkpoint> entry : checkpoints.entrySet()) {
+			Checkpoint checkpoint = entry.getValue();
+
+			lines.add(String.format("%d\t%d\t%d\t%s", // <br/>
+					Long.valueOf(checkpoint.committed), // <br/>
+					Long.valueOf(checkpoint.length), // <br/>
+					Long.valueOf(checkpoint.modified), // <br/>
+					entry.getKey()));
+		}
+
+		Util.writeLines(file, lines);
+	}
+}
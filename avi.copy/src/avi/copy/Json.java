@@ -0,0 +1,48 @@
+package avi.copy;
+
+/**
+ * Just enough JSON for progress reports.
+ */
+final class Json {
+
+	static String quote(String value) {
+		StringBuilder buffer = new StringBuilder(value.length() + 2);
+
+		buffer.append('"');
+
+		for (int i = 0, n = value.length(); i < n; ++i) {
+			char ch = value.charAt(i);
+
+			switch (ch) {
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			default:
+				if (ch < 0x20) {
+					buffer.append(String.format("\\u%04x", Integer.valueOf(ch)));
+				} else {
+					buffer.append(ch);
+				}
+				break;
+			}
+		}
+
+		return buffer.append('"').toString();
+	}
+
+	private Json() {
+		super();
+	}
+}
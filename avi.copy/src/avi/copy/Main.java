@@ -1,32 +1,13 @@
 package avi.copy;
 
-import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.DisposeEvent;
 import org.eclipse.swt.events.DisposeListener;
@@ -47,210 +28,13 @@ import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.ProgressBar;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Text;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 public class Main {
 
-	private static final class Copier extends Thread {
-
-		private static boolean DEBUG = false;
-
-		private static final int S_ABORTED = 0;
-
-		private static final int S_COPYING = 1;
-
-		private static final int S_PAUSED = 2;
-
-		private volatile long bytesCopied;
-
-		private final File destination;
-
-		private final long length;
-
-		private final File source;
-
-		private volatile int state;
-
-		private String trouble;
-
-		public Copier(File source, File destination) {
-			super("copy");
-			this.bytesCopied = 0;
-			this.destination = destination;
-			this.length = source.length();
-			this.source = source;
-			this.state = S_COPYING;
-			this.trouble = null;
-		}
-
-		public synchronized void abort() {
-			state = S_ABORTED;
-			notifyAll();
-		}
-
-		public synchronized long bytesCopied() {
-			return bytesCopied;
-		}
-
-		public synchronized boolean done() {
-			return bytesCopied == length;
-		}
-
-		public synchronized void pause() {
-			if (state != S_ABORTED) {
-				state = S_PAUSED;
-				notifyAll();
-			}
-		}
-
-		@Override
-		public void run() {
-			InputStream in = null;
-			RandomAccessFile out = null;
-
-			try {
-				bytesCopied = 0;
-				trouble = null;
-
-				if (destination.exists()) {
-					trouble = "Destination file exists.";
-					return;
-				}
-
-				if (DEBUG) {
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {
-						// ignore
-					}
-					return;
-				}
-
-				destination.getParentFile().mkdirs();
-
-				byte[] buffer;
-				int len;
-
-				out = new RandomAccessFile(destination, "rw");
-				in = new FileInputStream(source);
-				out.setLength(length);
-				buffer = new byte[0x4000];
-
-				for (;;) {
-					if (waitUnpaused() == S_ABORTED) {
-						break;
-					}
-
-					len = in.read(buffer);
-
-					if (len < 0) {
-						break;
-					}
-
-					if (waitUnpaused() == S_ABORTED) {
-						break;
-					}
-
-					out.write(buffer, 0, len);
-					bytesCopied += len;
-				}
-			} catch (IOException e) {
-				trouble = e.getLocalizedMessage();
-			} finally {
-				safeClose(in);
-				if (out != null && state == S_ABORTED) {
-					try {
-						out.setLength(0);
-					} catch (IOException e) {
-						// ignore - we're about to delete the file
-					}
-				}
-				safeClose(out);
-				bytesCopied = length;
-
-				if (state != S_ABORTED) {
-					destination.setLastModified(source.lastModified());
-				} else {
-					if (destination.exists()) {
-						destination.delete();
-					}
-					if (trouble == null) {
-						trouble = "aborted";
-					}
-				}
-			}
-		}
-
-		public synchronized void unpause() {
-			if (state == S_PAUSED) {
-				state = S_COPYING;
-				notifyAll();
-			}
-		}
-
-		private synchronized int waitUnpaused() {
-			while (state == S_PAUSED) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					// ignore
-				}
-			}
-
-			return state;
-		}
-	}
-
-	private static final class WorkItem implements Comparable<WorkItem> {
-
-		private final long length;
-
-		private final long modified;
-
-		private final String pathName;
-
-		public WorkItem(String pathName, File file) {
-			super();
-			this.length = file.length();
-			this.modified = file.lastModified();
-			this.pathName = pathName;
-		}
-
-		@Override
-		public int compareTo(WorkItem that) {
-			return this.pathName.compareTo(that.pathName);
-		}
-
-		public long getLength() {
-			return length;
-		}
-
-		public long getModified() {
-			return modified;
-		}
-
-		public String getPathName() {
-			return pathName;
-		}
-
-		@Override
-		public String toString() {
-			return String.format("%1$s (%2$,d bytes)", // <br/>
-					pathName, Long.valueOf(length));
-		}
-	}
-
-	private static final DateFormat DATE = new SimpleDateFormat("yyyyMMddHHmm");
-
-	private static final Pattern Extensions = Pattern.compile(".*\\.(avi|mkv|mov|mp4|mpg)", Pattern.CASE_INSENSITIVE);
-
 	private static final Pattern Mnemonics = Pattern.compile("&");
 
+	private static final int ScanDelay = 250;
+
 	private static String hideMnemonic(String label) {
 		return Mnemonics.matcher(label).replaceAll("&&");
 	}
@@ -297,31 +81,18 @@ public class Main {
 		return field;
 	}
 
-	/*private*/static void safeClose(Closeable stream) {
-		if (stream != null) {
-			try {
-				stream.close();
-			} catch (IOException e) {
-				// ignore
-			}
-		}
-	}
-
-	private Document controlData;
-
 	private Text controlFile;
 
-	private Copier copier;
-
 	private Button copyButton;
 
 	private Text destinationFolder;
 
-	private boolean dirty;
-
 	private Button exitButton;
 
-	private final Map<String, Date> newest;
+	/**
+	 * The failures of the last batch, or null if there were none.
+	 */
+	private String failed;
 
 	private Button pauseButton;
 
@@ -331,23 +102,55 @@ public class Main {
 
 	private Composite progressGroup;
 
+	private final ExecutorService scanExecutor;
+
+	private int scanGeneration;
+
+	private final Runnable scanStarter;
+
+	private final Session session;
+
 	private Shell shell;
 
+	/**
+	 * The file named in the status while copying, which "Skip file" skips.
+	 */
+	private WorkItem showing;
+
 	private Button skipButton;
 
 	private Text sourceFolder;
 
 	private Label statusLabel;
 
-	private int workIndex;
-
-	private final List<WorkItem> workToDo;
-
 	private Main() {
 		super();
-		this.dirty = false;
-		this.newest = new TreeMap<>();
-		this.workToDo = new ArrayList<>();
+		this.failed = null;
+		this.scanExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "scan");
+
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+		this.scanGeneration = 0;
+		this.scanStarter = new Runnable() {
+			@Override
+			public void run() {
+				startScan();
+			}
+		};
+		this.session = new Session();
+		this.session.addListener(new Progress.Listener() {
+			@Override
+			public void progressed(Progress.Snapshot snapshot) {
+				updateProgress(snapshot);
+			}
+		});
+		this.showing = null;
 	}
 
 	private void armUpdater(Runnable updater) {
@@ -363,89 +166,20 @@ public class Main {
 		shell.getDisplay().timerExec(100, updater);
 	}
 
-	private String computeWork() {
-		File srcDir = new File(sourceFolder.getText());
-
-		if (!srcDir.exists() || !srcDir.isDirectory()) {
-			return "Source folder not found.";
-		}
-
-		File ctlFile = new File(controlFile.getText());
-
-		if (!ctlFile.exists() || ctlFile.isDirectory()) {
-			return "Control file not found.";
-		}
-
-		File dstDir = new File(destinationFolder.getText());
-
-		if (!dstDir.exists() || !dstDir.isDirectory()) {
-			return "Destination folder not found.";
-		}
-
-		try {
-			readControlData(ctlFile);
-		} catch (IOException e) {
-			return "Can't read control file: " + e.getMessage();
-		}
-
-		dirty = false;
-		workToDo.clear();
-
-		for (Entry<String, Date> entry : newest.entrySet()) {
-			String folderName = entry.getKey();
-			Date time = entry.getValue();
-			File srcFolder = new File(srcDir, folderName);
-			File dstFolder = new File(dstDir, folderName);
-
-			String[] srcList = srcFolder.list();
-
-			if (srcList == null) {
-				continue;
-			}
-
-			for (String name : srcList) {
-				if (!Extensions.matcher(name).matches()) {
-					continue;
-				}
-
-				if (new File(dstFolder, name).exists()) {
-					continue;
-				}
-
-				File file = new File(srcFolder, name);
-				Date modified = new Date(file.lastModified());
-
-				if (modified.after(time)) {
-					String pathName = folderName + '/' + name;
-
-					workToDo.add(new WorkItem(pathName, file));
-				}
-			}
-		}
-
-		Collections.sort(workToDo);
-
-		return null;
-	}
-
 	/*private*/void copyPressed() {
-		boolean wasPaused = paused;
-
 		copyButton.setEnabled(false);
 		exitButton.setEnabled(false);
+		failed = null;
 		pauseButton.setEnabled(true);
 		paused = false;
 		progressGroup.setVisible(true);
 		skipButton.setEnabled(true);
 
-		if (copier != null) {
-			copier.unpause();
-		} else {
-			if (!wasPaused) {
-				workIndex = 0;
-			}
+		boolean resuming = session.isCopying();
 
-			startNextFile();
+		session.start();
+
+		if (!resuming) {
 			armUpdater(null);
 		}
 	}
@@ -568,13 +302,12 @@ public class Main {
 	}
 
 	/*private*/void handleDispose() {
-		if (copier != null) {
-			copier.abort();
-		}
+		scanExecutor.shutdownNow();
+		session.close(5000);
 	}
 
 	/*private*/void pausePressed() {
-		copier.pause();
+		session.pause();
 		copyButton.setEnabled(true);
 		exitButton.setEnabled(false);
 		pauseButton.setEnabled(false);
@@ -582,68 +315,6 @@ public class Main {
 		skipButton.setEnabled(true);
 	}
 
-	private void readControlData(File file) throws IOException {
-		InputStream in = null;
-
-		controlData = null;
-
-		try {
-			in = new FileInputStream(file);
-
-			controlData = DocumentBuilderFactory // <br/>
-					.newInstance() // <br/>
-					.newDocumentBuilder() // <br/>
-					.parse(in);
-		} catch (ParserConfigurationException e) {
-			throw new IOException(e);
-		} catch (SAXException e) {
-			throw new IOException(e);
-		} finally {
-			safeClose(in);
-		}
-
-		if (controlData == null) {
-			return;
-		}
-
-		newest.clear();
-
-		NodeList children = controlData.getDocumentElement().getChildNodes();
-
-		for (int i = 0, n = children.getLength(); i < n; ++i) {
-			Node node = children.item(i);
-
-			if (!(node instanceof Element)) {
-				continue;
-			}
-
-			Date date;
-			Element element = (Element) node;
-			Attr time;
-			Attr title;
-
-			if (!"video".equals(element.getTagName())) {
-				continue;
-			}
-
-			if ((title = element.getAttributeNode("title")) == null) {
-				continue;
-			}
-
-			if ((time = element.getAttributeNode("time")) == null) {
-				date = new Date(0);
-			} else {
-				try {
-					date = DATE.parse(time.getValue());
-				} catch (ParseException e) {
-					date = new Date(0);
-				}
-			}
-
-			newest.put(title.getValue(), date);
-		}
-	}
-
 	private void run(String[] args) {
 		Display display = new Display();
 
@@ -655,7 +326,7 @@ public class Main {
 		destinationFolder.setText(args.length > 1 ? args[1] : "E:/video");
 		sourceFolder.setText(args.length > 2 ? args[2] : "D:/video");
 
-		updateStatus();
+		requestScan();
 
 		shell.addDisposeListener(new DisposeListener() {
 			@Override
@@ -679,135 +350,107 @@ public class Main {
 		handleDispose();
 	}
 
-	private void saveControlData(File file) throws IOException {
-		NodeList children = controlData.getDocumentElement().getChildNodes();
-
-		for (int i = 0, n = children.getLength(); i < n; ++i) {
-			Node node = children.item(i);
-
-			if (!(node instanceof Element)) {
-				continue;
-			}
-
-			Date date;
-			Element element = (Element) node;
-			Attr time;
-			String timeValue;
-			Attr title;
+	private void requestScan() {
+		Display display = shell.getDisplay();
 
-			if (!"video".equals(element.getTagName())) {
-				continue;
-			}
-
-			if ((title = element.getAttributeNode("title")) == null) {
-				continue;
-			}
-
-			if ((date = newest.get(title.getValue())) == null) {
-				continue;
-			}
-
-			timeValue = DATE.format(date);
+		// restart the delay so that typing in a field scans only once
+		copyButton.setEnabled(false);
+		display.timerExec(-1, scanStarter);
+		display.timerExec(ScanDelay, scanStarter);
+	}
 
-			if ((time = element.getAttributeNode("time")) != null) {
-				time.setValue(timeValue);
-			} else {
-				element.setAttribute("time", timeValue);
-			}
+	/*private*/void scanFinished(int generation, Planner.Plan plan, Estimate estimate) {
+		if (shell.isDisposed() || generation != scanGeneration) {
+			return;
 		}
 
-		FileWriter writer = new FileWriter(file);
-
-		try {
-			DOMSource source;
-			StreamResult target;
-			Transformer transformer;
-
-			transformer = TransformerFactory.newInstance().newTransformer();
-			transformer.setOutputProperty("encoding", "utf-8");
-			transformer.setOutputProperty("indent", "yes");
-			transformer.setOutputProperty("method", "xml");
-
-			source = new DOMSource(controlData);
-
-			target = new StreamResult(file);
-
-			target.setWriter(writer);
-
-			transformer.transform(source, target);
-		} catch (TransformerException e) {
-			throw new IOException(e);
-		} finally {
-			writer.close();
+		// if a batch is running, we'll scan again when it's finished
+		if (session.adopt(plan)) {
+			updateStatus(plan, estimate);
 		}
 	}
 
 	/*private*/void settingsModified() {
-		updateStatus();
+		requestScan();
 	}
 
 	/*private*/void skipPressed() {
-		if (copier != null) {
-			copier.abort();
+		if (showing != null) {
+			session.skip(showing);
 		}
 	}
 
-	private void startNextFile() {
-		if (workIndex < workToDo.size()) {
-			WorkItem item = workToDo.get(workIndex);
-			String pathName = item.getPathName();
-			File source = new File(sourceFolder.getText(), pathName);
-			File destination = new File(destinationFolder.getText(), pathName);
+	/*private*/void startScan() {
+		final File ctlFile = new File(controlFile.getText());
+		final Display display = shell.getDisplay();
+		final File dstDir = new File(destinationFolder.getText());
+		final int generation = ++scanGeneration;
+		final File srcDir = new File(sourceFolder.getText());
 
-			copier = new Copier(source, destination);
+		scanExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Planner.Plan plan;
 
-			if (paused) {
-				copier.pause();
-			}
+				try {
+					plan = session.plan(srcDir, ctlFile, dstDir);
+				} catch (InterruptedException e) {
+					return;
+				}
 
-			copier.start();
-		} else {
-			copier = null;
-			copyButton.setEnabled(true);
-			exitButton.setEnabled(true);
-			pauseButton.setEnabled(false);
-			skipButton.setEnabled(false);
-		}
+				// looks at the destinations, so best done here too
+				final Estimate estimate = plan.error == null && !plan.work.isEmpty() ? new Estimate(plan) : null;
+
+				if (!display.isDisposed()) {
+					display.asyncExec(new Runnable() {
+						@Override
+						public void run() {
+							scanFinished(generation, plan, estimate);
+						}
+					});
+				}
+			}
+		});
 	}
 
-	private void updateNewest(WorkItem item) {
-		String pathName = item.getPathName();
-		int slash = pathName.lastIndexOf('/');
+	/*private*/void updateProgress(Progress.Snapshot snapshot) {
+		List<Progress.FileProgress> copying = snapshot.files;
 
-		if (slash >= 0) {
-			String folderName = pathName.substring(0, slash);
-			Date current = newest.get(folderName);
-			Date date = new Date(item.getModified());
+		showing = copying.isEmpty() ? null : copying.get(0).item;
+
+		if (showing != null) {
+			String status = "Copying " + hideMnemonic(showing.toString());
+
+			if (copying.size() > 1) {
+				status += String.format(" and %d more", Integer.valueOf(copying.size() - 1));
+			}
 
-			if (current == null || date.after(current)) {
-				dirty = true;
-				newest.put(folderName, date);
+			if (snapshot.remaining >= 0) {
+				status += String.format(" at %s/s, %s left", // <br/>
+						Util.format((long) snapshot.rate), Util.formatDuration(snapshot.remaining));
 			}
+
+			statusLabel.setText(status);
 		}
+
+		int max = progressBar.getMaximum();
+		int current = (int) ((snapshot.bytesCopied / (double) Math.max(1, snapshot.totalBytes)) * max);
+
+		progressBar.setSelection(current);
 	}
 
-	private void updateStatus() {
-		String error = computeWork();
-		int fileCount = workToDo.size();
+	private void updateStatus(Planner.Plan plan, Estimate estimate) {
+		int fileCount = plan.work.size();
 		String status;
 
-		if (error != null) {
+		if (plan.error != null) {
 			copyButton.setEnabled(false);
-			status = error;
+			status = plan.error;
 		} else if (fileCount == 0) {
 			copyButton.setEnabled(false);
 			status = "Destination is up-to-date.";
 		} else {
-			long totalBytes = 0;
-
-			for (WorkItem workItem : workToDo) {
-				totalBytes += workItem.getLength();
-			}
+			long totalBytes = plan.totalBytes();
 
 			status = String.format("%3$,d %4$s in %1$d %2$s to be copied.", // <br/>
 					Integer.valueOf(fileCount), // <br/>
@@ -815,9 +458,19 @@ public class Main {
 					Long.valueOf(totalBytes), // <br/>
 					(totalBytes == 1 ? "byte" : "bytes"));
 
+			if (estimate != null && !estimate.fits()) {
+				status += " Not enough space at the destination.";
+			} else if (estimate != null && estimate.seconds >= 0) {
+				status += String.format(" About %s.", Util.formatDuration(estimate.seconds));
+			}
+
 			copyButton.setEnabled(true);
 		}
 
+		if (failed != null) {
+			status = failed + ' ' + status;
+		}
+
 		statusLabel.setText(status);
 	}
 
@@ -826,65 +479,35 @@ public class Main {
 			return;
 		}
 
-		if (copier != null && copier.done()) {
-			updateNewest(workToDo.get(workIndex));
-			copier = null;
-			workIndex += 1;
-
-			if (!paused) {
-				startNextFile();
-			}
-		}
-
-		if (copier == null) {
+		if (!session.poll()) {
 			copyButton.setEnabled(true);
 			exitButton.setEnabled(true);
 			pauseButton.setEnabled(false);
-			progressGroup.setVisible(paused);
+			paused = false;
+			progressGroup.setVisible(false);
 			skipButton.setEnabled(false);
 
-			if (dirty && !paused) {
-				File ctlFile = new File(controlFile.getText());
-
-				try {
-					saveControlData(ctlFile);
-					dirty = false;
-					updateStatus();
-				} catch (IOException e) {
-					statusLabel.setText("Can't save control file: "
-							+ hideMnemonic(e.getLocalizedMessage()));
-				}
-			}
-
-			return;
-		}
+			List<String> failures = new ArrayList<>();
 
-		long bytesCopied = 0;
-		int fileCount = workToDo.size();
-		long totalBytes = 0;
+			session.drainFailures(failures);
 
-		for (int i = 0; i < fileCount; ++i) {
-			WorkItem item = workToDo.get(i);
-			long length = item.getLength();
+			if (failures.size() == 1) {
+				failed = "Failed: " + hideMnemonic(failures.get(0));
+			} else if (!failures.isEmpty()) {
+				failed = String.format("%d files failed, the first: %s", // <br/>
+						Integer.valueOf(failures.size()), hideMnemonic(failures.get(0)));
+			}
 
-			if (i < workIndex) {
-				bytesCopied += length;
-			} else if (i == workIndex) {
-				bytesCopied += copier.bytesCopied();
-				statusLabel.setText("Copying " + hideMnemonic(item.toString()));
+			if (failed != null) {
+				statusLabel.setText(failed);
 			}
 
-			totalBytes += length;
-		}
+			// the scan waits for the control file to be saved
+			requestScan();
 
-		if (totalBytes <= 0) {
-			totalBytes = 1;
+			return;
 		}
 
-		int max = progressBar.getMaximum();
-		int current = (int) ((bytesCopied / (double) totalBytes) * max);
-
-		progressBar.setSelection(current);
 		armUpdater(updater);
 	}
 }
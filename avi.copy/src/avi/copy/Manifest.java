@@ -0,0 +1,119 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Remembers the checksums of files that have been hashed, so they need not
+ * be hashed again while their length and modification time are unchanged.
+ * Each line holds the checksum (in hex), length, modification time and
+ * path, separated by tabs.
+ */
+final class Manifest {
+
+	private static final class Digest {
+
+		final long checksum;
+
+		final long length;
+
+		final long modified;
+
+		Digest(long checksum, long length, long modified) {
+			super();
+			this.checksum = checksum;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+
+	static Manifest open(File file) throws IOException {
+		Manifest manifest = new Manifest(file);
+
+		for (String[] fields : Util.readFields(file, 4)) {
+			try {
+				long checksum = Long.parseLong(fields[0], 16);
+				long length = Long.parseLong(fields[1]);
+				long modified = Long.parseLong(fields[2]);
+
+				manifest.digests.put(fields[3], new Digest(checksum, length, modified));
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+
+		return manifest;
+	}
+
+	private final Map<String, Digest> digests;
+
+	private boolean dirty;
+
+	private final File file;
+
+	private Manifest(File file) {
+		super();
+		this.digests = new TreeMap<>();
+		this.dirty = false;
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the checksum recorded for {@code path}, or null if there is none
+	 *         or the file has changed since
+	 */
+	public synchronized Long lookup(File path, long length, long modified) {
+		Digest digest = digests.get(path.getAbsolutePath());
+
+		if (digest == null || digest.length != length || digest.modified != modified) {
+			return null;
+		}
+
+		return Long.valueOf(digest.checksum);
+	}
+
+	public synchronized void record(File path, long length, long modified, long checksum) {
+		digests.put(path.getAbsolutePath(), new Digest(checksum, length, modified));
+		dirty = true;
+	}
+
+	public synchronized void remove(File path) {
+		if (digests.remove(path.getAbsolutePath()) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Writes the manifest if anything has been recorded since it was read or
+	 * last saved.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+
+		List<String> lines = new ArrayList<>();
+
+		for (Entry<String, Digest> entry : digests.entrySet()) {
+			Digest digest = entry.getValue();
+
+			lines.add(String.format("%x\t%d\t%d\t%s", // <br/>
+					Long.valueOf(digest.checksum), // <br/>
+					Long.valueOf(digest.length), // <br/>
+					Long.valueOf(digest.modified), // <br/>
+					entry.getKey()));
+		}
+
+		Util.writeLines(file, lines);
+		dirty = false;
+	}
+}
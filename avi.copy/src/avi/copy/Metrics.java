@@ -0,0 +1,261 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Records how long copies, verifications, scans and control file reads and
+ * saves take, so slow disks and regressions can be found after the fact.
+ * <p>
+ * Totals are kept for each kind of event, along with the last
+ * {@code avi.copy.metricsEvents} events themselves. Both are available
+ * through JMX (unless {@code avi.copy.jmx} is false) and are written to
+ * {@code avi.copy.metricsFile}, if set, at the end of each batch.
+ */
+final class Metrics {
+
+	private static final class Bean implements MetricsMXBean {
+
+		Bean() {
+			super();
+		}
+
+		@Override
+		public void dump(String fileName) throws IOException {
+			Metrics.dump(new File(fileName));
+		}
+
+		@Override
+		public List<String> getEvents() {
+			return Metrics.events();
+		}
+
+		@Override
+		public Map<String, Long> getValues() {
+			return Metrics.values();
+		}
+
+		@Override
+		public void reset() {
+			Metrics.reset();
+		}
+	}
+
+	private static final class Event {
+
+		final long bytes;
+
+		final String name;
+
+		final long nanos;
+
+		final long paused;
+
+		final String subject;
+
+		final long throttled;
+
+		final long time;
+
+		Event(String name, String subject, long nanos, long bytes, long paused, long throttled) {
+			super();
+			this.bytes = bytes;
+			this.name = name;
+			this.nanos = nanos;
+			this.paused = paused;
+			this.subject = subject;
+			this.throttled = throttled;
+			this.time = System.currentTimeMillis();
+		}
+
+		String toJson(DateFormat format) {
+			return String.format("{\"event\":%s,\"time\":%s,\"subject\":%s,\"nanos\":%d,\"bytes\":%d," // <br/>
+					+ "\"pausedNanos\":%d,\"throttledNanos\":%d}", // <br/>
+					Json.quote(name), Json.quote(format.format(new Date(time))), // <br/>
+					subject != null ? Json.quote(subject) : "null", // <br/>
+					Long.valueOf(nanos), Long.valueOf(bytes), Long.valueOf(paused), Long.valueOf(throttled));
+		}
+	}
+
+	private static final class Total {
+
+		long bytes;
+
+		long count;
+
+		long maxNanos;
+
+		long nanos;
+
+		long paused;
+
+		long throttled;
+
+		Total() {
+			super();
+		}
+
+		void add(Event event) {
+			bytes += event.bytes;
+			count += 1;
+			maxNanos = Math.max(maxNanos, event.nanos);
+			nanos += event.nanos;
+			paused += event.paused;
+			throttled += event.throttled;
+		}
+	}
+
+	private static final Deque<Event> Events = new ArrayDeque<>();
+
+	private static final Map<String, Total> Totals = new TreeMap<>();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static {
+		if (Settings.getBoolean("jmx", true)) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+						new ObjectName("avi.copy:type=Metrics"));
+			} catch (JMException e) {
+				// metrics are still recorded and can be dumped
+			}
+		}
+	}
+
+	/**
+	 * Writes the totals and recent events to {@code file}, one JSON object
+	 * per line.
+	 */
+	static void dump(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+
+		for (Entry<String, Long> entry : values().entrySet()) {
+			lines.add(String.format("{\"metric\":%s,\"value\":%d}", // <br/>
+					Json.quote(entry.getKey()), entry.getValue()));
+		}
+
+		lines.addAll(events());
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+
+		try {
+			Writer writer = new OutputStreamWriter(out, UTF8);
+
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+
+			writer.flush();
+		} finally {
+			Util.safeClose(out);
+		}
+
+		Util.replace(temp, file);
+	}
+
+	/**
+	 * Writes {@code avi.copy.metricsFile}, if set.
+	 *
+	 * @return the trouble encountered, or null
+	 */
+	static IOException dumpIfWanted() {
+		String fileName = Settings.getString("metricsFile", "");
+
+		if (!fileName.isEmpty()) {
+			try {
+				dump(new File(fileName));
+			} catch (IOException e) {
+				return e;
+			}
+		}
+
+		return null;
+	}
+
+	static synchronized List<String> events() {
+		DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		List<String> result = new ArrayList<>(Events.size());
+
+		for (Event event : Events) {
+			result.add(event.toJson(format));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Records an event that took {@code nanos} nanoseconds.
+	 *
+	 * @param name
+	 *            the kind of event, such as {@code copy} or {@code scan}
+	 * @param subject
+	 *            what the event concerns, usually a path
+	 * @param paused
+	 *            the part of {@code nanos} spent paused
+	 * @param throttled
+	 *            the part of {@code nanos} spent waiting for the throttle
+	 */
+	static synchronized void record(String name, String subject, long nanos, long bytes, long paused,
+			long throttled) {
+		Event event = new Event(name, subject, nanos, bytes, paused, throttled);
+		Total total = Totals.get(name);
+
+		if (total == null) {
+			Totals.put(name, total = new Total());
+		}
+
+		total.add(event);
+		Events.addLast(event);
+
+		while (Events.size() > Math.max(0, Settings.getInt("metricsEvents", 1000))) {
+			Events.removeFirst();
+		}
+	}
+
+	static synchronized void reset() {
+		Events.clear();
+		Totals.clear();
+	}
+
+	static synchronized Map<String, Long> values() {
+		Map<String, Long> values = new TreeMap<>();
+
+		for (Entry<String, Total> entry : Totals.entrySet()) {
+			String name = entry.getKey();
+			Total total = entry.getValue();
+
+			values.put(name + ".bytes", Long.valueOf(total.bytes));
+			values.put(name + ".count", Long.valueOf(total.count));
+			values.put(name + ".maxNanos", Long.valueOf(total.maxNanos));
+			values.put(name + ".nanos", Long.valueOf(total.nanos));
+			values.put(name + ".pausedNanos", Long.valueOf(total.paused));
+			values.put(name + ".throttledNanos", Long.valueOf(total.throttled));
+		}
+
+		return values;
+	}
+
+	private Metrics() {
+		super();
+	}
+}
@@ -0,0 +1,27 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of {@link Metrics}, registered as
+ * {@code avi.copy:type=Metrics}.
+ */
+public interface MetricsMXBean {
+
+	void dump(String fileName) throws IOException;
+
+	/**
+	 * @return the most recent events, one JSON object each
+	 */
+	List<String> getEvents();
+
+	/**
+	 * @return the totals for each kind of event, named like
+	 *         {@code copy.bytes} or {@code scan.maxNanos}
+	 */
+	Map<String, Long> getValues();
+
+	void reset();
+}
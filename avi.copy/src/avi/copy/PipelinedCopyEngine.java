@@ -0,0 +1,180 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Overlaps reading and writing: a reader thread fills a ring of buffers
+ * while the copier's own thread writes them out, so a copy between two
+ * devices runs at about the speed of the slower one rather than at the
+ * sum of their latencies.
+ * <p>
+ * The reader is never interrupted, since that would close the source
+ * channel; it is stopped with a flag instead.
+ */
+final class PipelinedCopyEngine implements CopyEngine {
+
+	/**
+	 * Marks the end of the data, or tells the reader to look at its flag.
+	 */
+	private static final ByteBuffer End = ByteBuffer.allocate(0);
+
+	private static final ExecutorService Pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "copy-read");
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
+
+	/**
+	 * Waits for the reader to stop, passing on any trouble it had.
+	 */
+	private static void join(Future<Void> reader) throws IOException {
+		for (;;) {
+			try {
+				reader.get();
+				return;
+			} catch (InterruptedException e) {
+				// ignore
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+
+				throw new IOException(cause);
+			}
+		}
+	}
+
+	/*private*/static void read(FileChannel source, long position, long count, BlockingQueue<ByteBuffer> free,
+			BlockingQueue<ByteBuffer> full, AtomicBoolean stopped) throws IOException, InterruptedException {
+		try {
+			while (count > 0) {
+				ByteBuffer buffer = free.take();
+
+				if (stopped.get()) {
+					break;
+				}
+
+				buffer.clear();
+
+				if (buffer.remaining() > count) {
+					buffer.limit((int) count);
+				}
+
+				int len = 0;
+
+				while (buffer.hasRemaining() && (len = source.read(buffer, position + buffer.position())) >= 0) {
+					// fill the buffer
+				}
+
+				buffer.flip();
+				position += buffer.remaining();
+				count -= buffer.remaining();
+				full.put(buffer);
+
+				if (len < 0) {
+					break;
+				}
+			}
+		} finally {
+			full.put(End);
+		}
+	}
+
+	private static ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws InterruptedIOException {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			// the copy is being stopped
+			throw new InterruptedIOException();
+		}
+	}
+
+	private final int bufferCount;
+
+	private final int bufferSize;
+
+	PipelinedCopyEngine(int bufferCount, int bufferSize) {
+		super();
+		this.bufferCount = Math.max(2, bufferCount);
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, final long position, final long count,
+			Monitor monitor) throws IOException {
+		final FileChannel source = in.getChannel();
+		FileChannel target = out.getChannel();
+		List<ByteBuffer> buffers = new ArrayList<>(bufferCount);
+		final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(bufferCount + 1);
+		final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(bufferCount + 1);
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		for (int i = 0; i < bufferCount; ++i) {
+			ByteBuffer buffer = BufferPool.acquire(bufferSize, 1);
+
+			buffers.add(buffer);
+			free.add(buffer);
+		}
+
+		Future<Void> reader = Pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				read(source, position, count, free, full, stopped);
+				return null;
+			}
+		});
+
+		try {
+			for (long written = position;;) {
+				if (!monitor.proceed()) {
+					break;
+				}
+
+				ByteBuffer buffer = take(full);
+
+				if (buffer == End) {
+					break;
+				}
+
+				int len = buffer.remaining();
+
+				while (buffer.hasRemaining()) {
+					written += target.write(buffer, written);
+				}
+
+				free.add(buffer);
+				monitor.copied(len);
+			}
+		} finally {
+			stopped.set(true);
+			free.add(End);
+			join(reader);
+
+			for (ByteBuffer buffer : buffers) {
+				BufferPool.release(buffer, 1);
+			}
+		}
+	}
+}
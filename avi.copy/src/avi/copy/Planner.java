@@ -0,0 +1,512 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which files need copying. Folder listings are cached, keyed by
+ * the folder's own modification time, so folders that have not changed
+ * since the previous plan are not listed again. Writing to a file doesn't
+ * change its folder, so the length and modification time of a file that
+ * is to be copied are read again rather than taken from a cached listing.
+ * <p>
+ * Folders named in {@code avi.copy.mirrors} receive the same files as the
+ * destination folder; a file is copied if it is missing from any of them.
+ * <p>
+ * A planner is not thread-safe; callers are expected to run plans one at a
+ * time, typically on a single background thread. A plan may itself scan up
+ * to {@code avi.copy.scanThreads} folders at once, which helps a lot when
+ * each listing is a round trip to a file server.
+ */
+final class Planner {
+
+	/**
+	 * Scans a range of the control file's folders, splitting it in two until
+	 * each part is a single folder. The parts are joined in order.
+	 */
+	private final class FolderScan extends RecursiveTask<List<WorkItem>> {
+
+		private static final long serialVersionUID = 1L;
+
+		final boolean dedupe;
+
+		final File dstDir;
+
+		final List<Entry<String, Date>> folders;
+
+		final int from;
+
+		final List<File> mirrorDirs;
+
+		final File srcDir;
+
+		final int to;
+
+		FolderScan(File srcDir, File dstDir, List<File> mirrorDirs, boolean dedupe, List<Entry<String, Date>> folders,
+				int from, int to) {
+			super();
+			this.dedupe = dedupe;
+			this.dstDir = dstDir;
+			this.folders = folders;
+			this.from = from;
+			this.mirrorDirs = mirrorDirs;
+			this.srcDir = srcDir;
+			this.to = to;
+		}
+
+		@Override
+		protected List<WorkItem> compute() {
+			if (to - from <= 1 || getPool() == null) {
+				List<WorkItem> work = new ArrayList<>();
+
+				for (Entry<String, Date> entry : folders.subList(from, to)) {
+					work.addAll(scan(srcDir, dstDir, mirrorDirs, dedupe, entry.getKey(), entry.getValue().getTime()));
+				}
+
+				return work;
+			}
+
+			int middle = (from + to) >>> 1;
+			FolderScan first = new FolderScan(srcDir, dstDir, mirrorDirs, dedupe, folders, from, middle);
+			FolderScan second = new FolderScan(srcDir, dstDir, mirrorDirs, dedupe, folders, middle, to);
+
+			first.fork();
+
+			List<WorkItem> work = second.compute();
+
+			work.addAll(0, first.join());
+
+			return work;
+		}
+	}
+
+	private static final class Listing<T> {
+
+		final long folderModified;
+
+		final long taken;
+
+		final T value;
+
+		Listing(long folderModified, long taken, T value) {
+			super();
+			this.folderModified = folderModified;
+			this.taken = taken;
+			this.value = value;
+		}
+
+		boolean isCurrent(long modified) {
+			// a change within the timestamp granularity might be missed
+			return modified == folderModified && taken - folderModified > TimestampGranularity;
+		}
+	}
+
+	static final class Plan {
+
+		private static long sum(List<WorkItem> work) {
+			long total = 0;
+
+			for (WorkItem item : work) {
+				total += item.getLength();
+			}
+
+			return total;
+		}
+
+		final ControlData controlData;
+
+		final File destinationFolder;
+
+		final String error;
+
+		/**
+		 * The content of the destination, or null unless
+		 * {@code avi.copy.dedupe} is set.
+		 */
+		final ContentIndex index;
+
+		final Journal journal;
+
+		final Manifest manifest;
+
+		/**
+		 * Folders that receive the same files as the destination folder.
+		 */
+		final List<File> mirrorFolders;
+
+		/**
+		 * The measured speed of copies to each device.
+		 */
+		final DeviceRates rates;
+
+		final File sourceFolder;
+
+		private final long totalBytes;
+
+		final List<WorkItem> work;
+
+		Plan(String error) {
+			this(error, null, null, Collections.<File> emptyList(), null, null, null, null, null,
+					Collections.<WorkItem> emptyList());
+		}
+
+		Plan(String error, File sourceFolder, File destinationFolder, List<File> mirrorFolders,
+				ControlData controlData, Journal journal, Manifest manifest, ContentIndex index, DeviceRates rates,
+				List<WorkItem> work) {
+			super();
+			this.controlData = controlData;
+			this.destinationFolder = destinationFolder;
+			this.error = error;
+			this.index = index;
+			this.journal = journal;
+			this.manifest = manifest;
+			this.mirrorFolders = mirrorFolders;
+			this.rates = rates;
+			this.sourceFolder = sourceFolder;
+			this.totalBytes = sum(work);
+			this.work = work;
+		}
+
+		/**
+		 * @return the files in the destination and mirror folders that
+		 *         {@code item} must be copied to: those that don't exist or
+		 *         were only partly copied
+		 */
+		List<File> destinationsOf(WorkItem item) {
+			List<File> result = new ArrayList<>();
+
+			addIfWanted(result, new File(destinationFolder, item.getPathName()));
+
+			for (File folder : mirrorFolders) {
+				addIfWanted(result, new File(folder, item.getPathName()));
+			}
+
+			return result;
+		}
+
+		/**
+		 * @return the total length of the files to be copied
+		 */
+		long totalBytes() {
+			return totalBytes;
+		}
+
+		private void addIfWanted(List<File> destinations, File destination) {
+			if (!destination.exists() || journal.contains(destination)) {
+				destinations.add(destination);
+			}
+		}
+	}
+
+	static final Pattern Extensions = Pattern.compile(".*\\.(avi|mkv|mov|mp4|mpg)", Pattern.CASE_INSENSITIVE);
+
+	private static final long TimestampGranularity = 2000;
+
+	/**
+	 * @return {@code item}, with the length and modification time its file
+	 *         in {@code folder} has now
+	 */
+	private static WorkItem current(File folder, WorkItem item) {
+		String pathName = item.getPathName();
+		File file = new File(folder, pathName.substring(pathName.lastIndexOf('/') + 1));
+		long length = file.length();
+		long modified = file.lastModified();
+
+		if (length == item.getLength() && modified == item.getModified()) {
+			return item;
+		}
+
+		return new WorkItem(pathName, length, modified);
+	}
+
+	/**
+	 * @return the folders named by {@code avi.copy.mirrors}, separated by the
+	 *         platform's path separator
+	 */
+	private static List<File> mirrorFolders() {
+		List<File> result = new ArrayList<>();
+
+		for (String name : Settings.getString("mirrors", "").split(Pattern.quote(File.pathSeparator))) {
+			if (!name.trim().isEmpty()) {
+				result.add(new File(name.trim()));
+			}
+		}
+
+		return result;
+	}
+
+	private final Map<File, Listing<Set<String>>> destinations;
+
+	private ContentIndex index;
+
+	private final Map<File, Listing<Void>> indexed;
+
+	private Journal journal;
+
+	private Manifest manifest;
+
+	private ForkJoinPool pool;
+
+	private DeviceRates rates;
+
+	private final Map<File, Listing<List<WorkItem>>> sources;
+
+	Planner() {
+		super();
+		this.destinations = new ConcurrentHashMap<>();
+		this.index = null;
+		this.indexed = new ConcurrentHashMap<>();
+		this.journal = null;
+		this.manifest = null;
+		this.pool = null;
+		this.rates = null;
+		this.sources = new ConcurrentHashMap<>();
+	}
+
+	public Plan plan(File srcDir, File ctlFile, File dstDir) {
+		long started = System.nanoTime();
+
+		if (!srcDir.exists() || !srcDir.isDirectory()) {
+			return new Plan("Source folder not found.");
+		}
+
+		if (!ctlFile.exists() || ctlFile.isDirectory()) {
+			return new Plan("Control file not found.");
+		}
+
+		if (!dstDir.exists() || !dstDir.isDirectory()) {
+			return new Plan("Destination folder not found.");
+		}
+
+		List<File> mirrorDirs = mirrorFolders();
+
+		for (File mirrorDir : mirrorDirs) {
+			if (!mirrorDir.exists() || !mirrorDir.isDirectory()) {
+				return new Plan("Mirror folder not found: " + mirrorDir);
+			}
+		}
+
+		String settingsError = Throttle.checkSettings();
+
+		if (settingsError != null) {
+			return new Plan(settingsError);
+		}
+
+		ControlData controlData;
+
+		try {
+			controlData = ControlData.read(ctlFile);
+		} catch (IOException e) {
+			return new Plan("Can't read control file: " + e.getMessage());
+		}
+
+		File journalFile = new File(ctlFile.getPath() + ".journal");
+
+		if (journal == null || !journal.getFile().equals(journalFile)) {
+			try {
+				journal = Journal.open(journalFile);
+			} catch (IOException e) {
+				return new Plan("Can't read journal: " + e.getMessage());
+			}
+		}
+
+		File manifestFile = new File(ctlFile.getPath() + ".manifest");
+
+		if (manifest == null || !manifest.getFile().equals(manifestFile)) {
+			try {
+				manifest = Manifest.open(manifestFile);
+			} catch (IOException e) {
+				return new Plan("Can't read manifest: " + e.getMessage());
+			}
+		}
+
+		File ratesFile = new File(ctlFile.getPath() + ".rates");
+
+		if (rates == null || !rates.getFile().equals(ratesFile)) {
+			try {
+				rates = DeviceRates.open(ratesFile);
+			} catch (IOException e) {
+				return new Plan("Can't read device rates: " + e.getMessage());
+			}
+		}
+
+		boolean dedupe = Settings.getBoolean("dedupe", false);
+		File indexFile = new File(ctlFile.getPath() + ".index");
+
+		if (dedupe && (index == null || !index.getFile().equals(indexFile))) {
+			try {
+				index = ContentIndex.open(indexFile);
+				indexed.clear();
+			} catch (IOException e) {
+				return new Plan("Can't read content index: " + e.getMessage());
+			}
+		}
+
+		List<Entry<String, Date>> folders = new ArrayList<>(controlData.getNewest().entrySet());
+		FolderScan scan = new FolderScan(srcDir, dstDir, mirrorDirs, dedupe, folders, 0, folders.size());
+		int threads = Settings.getInt("scanThreads", 1);
+		List<WorkItem> work;
+
+		if (threads > 1 && folders.size() > 1) {
+			if (pool == null || pool.getParallelism() != threads) {
+				if (pool != null) {
+					pool.shutdown();
+				}
+				pool = new ForkJoinPool(threads);
+			}
+
+			work = pool.invoke(scan);
+		} else {
+			work = scan.compute();
+		}
+
+		Collections.sort(work);
+
+		Plan plan = new Plan(null, srcDir, dstDir, mirrorDirs, controlData, journal, manifest, dedupe ? index : null,
+				rates, work);
+
+		Metrics.record("scan", srcDir.getPath(), System.nanoTime() - started, plan.totalBytes(), 0, 0);
+
+		return plan;
+	}
+
+	/**
+	 * @return the files in one folder that need copying
+	 */
+	/*private*/List<WorkItem> scan(File srcDir, File dstDir, List<File> mirrorDirs, boolean dedupe, String folderName,
+			long time) {
+		File dstFolder = new File(dstDir, folderName);
+
+		if (dedupe) {
+			indexDestination(dstFolder, folderName);
+		}
+
+		File srcFolder = new File(srcDir, folderName);
+		Listing<List<WorkItem>> previous = sources.get(srcFolder);
+		List<WorkItem> candidates = listSource(srcFolder, folderName);
+		List<WorkItem> work = new ArrayList<>();
+
+		if (candidates.isEmpty()) {
+			return work;
+		}
+
+		// a file may have been written to since a cached listing was taken
+		boolean cached = previous != null && previous.value == candidates;
+		Map<File, Set<String>> existing = new LinkedHashMap<>();
+
+		existing.put(dstFolder, listDestination(dstFolder));
+
+		for (File mirrorDir : mirrorDirs) {
+			File mirrorFolder = new File(mirrorDir, folderName);
+
+			existing.put(mirrorFolder, listDestination(mirrorFolder));
+		}
+
+		for (WorkItem candidate : candidates) {
+			if (isWanted(candidate, existing)) {
+				WorkItem item = cached ? current(srcFolder, candidate) : candidate;
+
+				if (item.getModified() > time) {
+					work.add(item);
+				}
+			}
+		}
+
+		return work;
+	}
+
+	/**
+	 * Brings the content index up to date for a destination folder that has
+	 * changed since it was last indexed.
+	 */
+	private void indexDestination(File folder, String folderName) {
+		long modified = folder.lastModified();
+		Listing<Void> listing = indexed.get(folder);
+
+		if (listing == null || !listing.isCurrent(modified)) {
+			long taken = System.currentTimeMillis();
+			List<WorkItem> value;
+
+			try {
+				value = FolderScanner.listWork(folder.toPath(), folderName, Extensions);
+			} catch (IOException e) {
+				value = Collections.emptyList();
+			}
+
+			index.refresh(folder, value);
+			indexed.put(folder, new Listing<Void>(modified, taken, null));
+		}
+	}
+
+	/**
+	 * @return true if {@code item} is missing from any of the folders, given
+	 *         with the names they hold
+	 */
+	private boolean isWanted(WorkItem item, Map<File, Set<String>> existing) {
+		String pathName = item.getPathName();
+		String name = pathName.substring(pathName.lastIndexOf('/') + 1);
+
+		for (Entry<File, Set<String>> folder : existing.entrySet()) {
+			// a partial copy recorded in the journal is resumed
+			if (!folder.getValue().contains(name) || journal.contains(new File(folder.getKey(), name))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private Set<String> listDestination(File folder) {
+		long modified = folder.lastModified();
+		Listing<Set<String>> listing = destinations.get(folder);
+
+		if (listing == null || !listing.isCurrent(modified)) {
+			long taken = System.currentTimeMillis();
+			Set<String> value;
+
+			try {
+				value = FolderScanner.listNames(folder.toPath());
+			} catch (IOException e) {
+				value = Collections.emptySet();
+			}
+
+			listing = new Listing<>(modified, taken, value);
+			destinations.put(folder, listing);
+		}
+
+		return listing.value;
+	}
+
+	private List<WorkItem> listSource(File folder, String folderName) {
+		long modified = folder.lastModified();
+		Listing<List<WorkItem>> listing = sources.get(folder);
+
+		if (listing == null || !listing.isCurrent(modified)) {
+			long taken = System.currentTimeMillis();
+			List<WorkItem> value;
+
+			try {
+				value = FolderScanner.listWork(folder.toPath(), folderName, Extensions);
+			} catch (IOException e) {
+				value = Collections.emptyList();
+			}
+
+			listing = new Listing<>(modified, taken, value);
+			sources.put(folder, listing);
+		}
+
+		return listing.value;
+	}
+}
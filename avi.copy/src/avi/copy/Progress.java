@@ -0,0 +1,239 @@
+package avi.copy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the progress of a batch. Copiers update it through their
+ * {@link Tracker} without taking any locks; readers take a {@link Snapshot}
+ * from time to time, which also works out the current throughput (as a
+ * moving average) and how long the rest of the batch should take.
+ */
+final class Progress {
+
+	static final class FileProgress {
+
+		final long bytesCopied;
+
+		final File destination;
+
+		final WorkItem item;
+
+		/**
+		 * The average rate since the file was started, in bytes per second.
+		 */
+		final double rate;
+
+		FileProgress(WorkItem item, File destination, long bytesCopied, double rate) {
+			super();
+			this.bytesCopied = bytesCopied;
+			this.destination = destination;
+			this.item = item;
+			this.rate = rate;
+		}
+	}
+
+	interface Listener {
+
+		/**
+		 * Called regularly while a batch runs, on the thread that polls the
+		 * session.
+		 */
+		void progressed(Snapshot snapshot);
+	}
+
+	static final class Snapshot {
+
+		final long bytesCopied;
+
+		/**
+		 * The files being copied, in order of their path names.
+		 */
+		final List<FileProgress> files;
+
+		/**
+		 * The recent throughput, in bytes per second.
+		 */
+		final double rate;
+
+		/**
+		 * The estimated time to finish, in seconds, or -1 if unknown.
+		 */
+		final long remaining;
+
+		final long totalBytes;
+
+		Snapshot(long bytesCopied, long totalBytes, double rate, long remaining, List<FileProgress> files) {
+			super();
+			this.bytesCopied = bytesCopied;
+			this.files = files;
+			this.rate = rate;
+			this.remaining = remaining;
+			this.totalBytes = totalBytes;
+		}
+	}
+
+	/**
+	 * The progress of one file to one destination.
+	 */
+	final class Tracker {
+
+		final AtomicLong bytesCopied;
+
+		final File destination;
+
+		final WorkItem item;
+
+		final long started;
+
+		Tracker(WorkItem item, File destination) {
+			super();
+			this.bytesCopied = new AtomicLong();
+			this.destination = destination;
+			this.item = item;
+			this.started = System.nanoTime();
+		}
+
+		/**
+		 * Records that {@code count} more bytes have been copied.
+		 */
+		void copied(long count) {
+			bytesCopied.addAndGet(count);
+			done.addAndGet(count);
+			moved.addAndGet(count);
+		}
+
+		/**
+		 * Takes back {@code count} bytes that were counted as copied but turn
+		 * out to need copying after all.
+		 */
+		void discarded(long count) {
+			bytesCopied.addAndGet(-count);
+			done.addAndGet(-count);
+		}
+
+		/**
+		 * Counts the file in full, whether or not it was copied completely.
+		 */
+		void finish() {
+			if (active.remove(this)) {
+				done.addAndGet(item.getLength() - bytesCopied.get());
+			}
+		}
+
+		/**
+		 * Records that {@code count} bytes were copied by an earlier run.
+		 */
+		void resumed(long count) {
+			bytesCopied.addAndGet(count);
+			done.addAndGet(count);
+		}
+	}
+
+	private static final double Second = 1e9;
+
+	/**
+	 * The time constant of the throughput average, in seconds.
+	 */
+	private static final double Smoothing = 5;
+
+	/*private*/final Set<Tracker> active;
+
+	/*private*/final AtomicLong done;
+
+	/*private*/final AtomicLong moved;
+
+	private double rate;
+
+	private long sampled;
+
+	private long sampledBytes;
+
+	private final AtomicLong total;
+
+	Progress() {
+		super();
+		this.active = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+		this.done = new AtomicLong();
+		this.moved = new AtomicLong();
+		this.rate = -1;
+		this.sampled = System.nanoTime();
+		this.sampledBytes = 0;
+		this.total = new AtomicLong();
+	}
+
+	/**
+	 * Adds {@code bytes} to the size of the batch.
+	 */
+	public void add(long bytes) {
+		total.addAndGet(bytes);
+	}
+
+	/**
+	 * @return the number of bytes copied so far, counting finished and
+	 *         skipped files in full
+	 */
+	public long bytesCopied() {
+		return done.get();
+	}
+
+	public synchronized Snapshot snapshot() {
+		long now = System.nanoTime();
+		long bytes = moved.get();
+		double elapsed = (now - sampled) / Second;
+
+		if (elapsed > 0.05) {
+			double current = (bytes - sampledBytes) / elapsed;
+
+			// an exponential moving average that allows for uneven sampling
+			rate = rate < 0 ? current : rate + (current - rate) * (1 - Math.exp(-elapsed / Smoothing));
+			sampled = now;
+			sampledBytes = bytes;
+		}
+
+		List<FileProgress> files = new ArrayList<>();
+
+		for (Tracker tracker : active) {
+			long copied = tracker.bytesCopied.get();
+			double seconds = (now - tracker.started) / Second;
+
+			files.add(new FileProgress(tracker.item, tracker.destination, copied, seconds > 0 ? copied / seconds : 0));
+		}
+
+		Collections.sort(files, new Comparator<FileProgress>() {
+			@Override
+			public int compare(FileProgress a, FileProgress b) {
+				int result = a.item.compareTo(b.item);
+
+				return result != 0 ? result : a.destination.compareTo(b.destination);
+			}
+		});
+
+		long copied = done.get();
+		long totalBytes = total.get();
+		long remaining = rate > 0 ? (long) Math.ceil(Math.max(0, totalBytes - copied) / rate) : -1;
+
+		return new Snapshot(copied, totalBytes, Math.max(0, rate), remaining, files);
+	}
+
+	public long totalBytes() {
+		return total.get();
+	}
+
+	/**
+	 * Starts tracking the copy of a file to {@code destination}.
+	 */
+	public Tracker track(WorkItem item, File destination) {
+		Tracker tracker = new Tracker(item, destination);
+
+		active.add(tracker);
+
+		return tracker;
+	}
+}
@@ -0,0 +1,178 @@
+package avi.copy;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The order in which queued files are copied, chosen by
+ * {@code avi.copy.order}:
+ * <dl>
+ * <dt>name</dt>
+ * <dd>by path name (the default)</dd>
+ * <dt>newest</dt>
+ * <dd>most recently modified first</dd>
+ * <dt>smallest</dt>
+ * <dd>shortest first, so one huge file doesn't hold up many small ones</dd>
+ * <dt>priority</dt>
+ * <dd>by the {@code priority} attribute of each folder in the control file,
+ * highest first (folders without one have priority 0)</dd>
+ * <dt>folders</dt>
+ * <dd>a file from each folder in turn</dd>
+ * </dl>
+ * Files that are otherwise equal are taken by path name. The order only
+ * decides which file is copied next; folder times still only advance past
+ * files that have been copied.
+ */
+abstract class QueueOrder implements Comparator<WorkItem> {
+
+	private static final class ByName extends QueueOrder {
+
+		ByName() {
+			super();
+		}
+
+		@Override
+		int compareFirst(WorkItem a, WorkItem b) {
+			return 0;
+		}
+	}
+
+	private static final class ByPriority extends QueueOrder {
+
+		private final Map<String, Integer> priorities;
+
+		ByPriority(Map<String, Integer> priorities) {
+			super();
+			this.priorities = priorities;
+		}
+
+		@Override
+		int compareFirst(WorkItem a, WorkItem b) {
+			return Integer.compare(priorityOf(b), priorityOf(a));
+		}
+
+		private int priorityOf(WorkItem item) {
+			Integer priority = priorities.get(item.getFolderName());
+
+			return priority != null ? priority.intValue() : 0;
+		}
+	}
+
+	private static final class ByTurn extends QueueOrder {
+
+		private final Map<String, Integer> queued;
+
+		private final Map<WorkItem, Integer> turns;
+
+		ByTurn() {
+			super();
+			this.queued = new HashMap<>();
+			this.turns = new HashMap<>();
+		}
+
+		@Override
+		int compareFirst(WorkItem a, WorkItem b) {
+			int result = Integer.compare(turnOf(a), turnOf(b));
+
+			if (result == 0) {
+				result = String.valueOf(a.getFolderName()).compareTo(String.valueOf(b.getFolderName()));
+			}
+
+			return result;
+		}
+
+		@Override
+		void queued(WorkItem item) {
+			String folderName = item.getFolderName();
+			Integer count = queued.get(folderName);
+			int turn = count != null ? count.intValue() : 0;
+
+			queued.put(folderName, Integer.valueOf(turn + 1));
+			turns.put(item, Integer.valueOf(turn));
+		}
+
+		@Override
+		void removed(WorkItem item) {
+			turns.remove(item);
+		}
+
+		private int turnOf(WorkItem item) {
+			Integer turn = turns.get(item);
+
+			return turn != null ? turn.intValue() : 0;
+		}
+	}
+
+	private static final class Newest extends QueueOrder {
+
+		Newest() {
+			super();
+		}
+
+		@Override
+		int compareFirst(WorkItem a, WorkItem b) {
+			return Long.compare(b.getModified(), a.getModified());
+		}
+	}
+
+	private static final class Smallest extends QueueOrder {
+
+		Smallest() {
+			super();
+		}
+
+		@Override
+		int compareFirst(WorkItem a, WorkItem b) {
+			return Long.compare(a.getLength(), b.getLength());
+		}
+	}
+
+	/**
+	 * @param priorities
+	 *            the priority of each folder, from the control file
+	 */
+	static QueueOrder fromSettings(Map<String, Integer> priorities) {
+		String name = Settings.getString("order", "name");
+
+		if ("newest".equals(name)) {
+			return new Newest();
+		} else if ("smallest".equals(name)) {
+			return new Smallest();
+		} else if ("priority".equals(name)) {
+			return new ByPriority(priorities);
+		} else if ("folders".equals(name)) {
+			return new ByTurn();
+		} else {
+			return new ByName();
+		}
+	}
+
+	QueueOrder() {
+		super();
+	}
+
+	@Override
+	public final int compare(WorkItem a, WorkItem b) {
+		int result = compareFirst(a, b);
+
+		return result != 0 ? result : a.compareTo(b);
+	}
+
+	abstract int compareFirst(WorkItem a, WorkItem b);
+
+	/**
+	 * Notes that {@code item} has joined the queue; called before it is
+	 * compared with anything.
+	 */
+	void queued(WorkItem item) {
+		// nothing by default
+	}
+
+	/**
+	 * Notes that {@code item} has left the queue.
+	 */
+	void removed(WorkItem item) {
+		// nothing by default
+	}
+}
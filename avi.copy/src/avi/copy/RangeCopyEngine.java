@@ -0,0 +1,137 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits a copy into byte ranges which are copied concurrently with
+ * positional reads and writes; this relies on the destination having been
+ * sized up front.
+ */
+final class RangeCopyEngine implements CopyEngine {
+
+	private static final ExecutorService Pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "copy-range");
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
+
+	/*private*/static void copyRange(FileChannel source, FileChannel target, long position, long count,
+			int bufferSize, Monitor monitor) throws IOException {
+		ByteBuffer buffer = BufferPool.acquire(bufferSize, 1);
+
+		try {
+			transfer(source, target, position, count, buffer, monitor);
+		} finally {
+			BufferPool.release(buffer, 1);
+		}
+	}
+
+	private static void transfer(FileChannel source, FileChannel target, long position, long count,
+			ByteBuffer buffer, Monitor monitor) throws IOException {
+		while (count > 0) {
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			buffer.clear();
+
+			if (buffer.remaining() > count) {
+				buffer.limit((int) count);
+			}
+
+			int len = source.read(buffer, position);
+
+			if (len < 0) {
+				break;
+			}
+
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			buffer.flip();
+
+			while (buffer.hasRemaining()) {
+				position += target.write(buffer, position);
+			}
+
+			count -= len;
+			monitor.copied(len);
+		}
+	}
+
+	private final int bufferSize;
+
+	private final int ranges;
+
+	RangeCopyEngine(int ranges, int bufferSize) {
+		super();
+		this.bufferSize = bufferSize;
+		this.ranges = ranges;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, final Monitor monitor)
+			throws IOException {
+		final FileChannel source = in.getChannel();
+		final FileChannel target = out.getChannel();
+		long rangeSize = (count + ranges - 1) / ranges;
+		List<Callable<Void>> tasks = new ArrayList<>(ranges);
+
+		// round up to a whole number of buffers
+		rangeSize = (rangeSize + bufferSize - 1) / bufferSize * bufferSize;
+
+		for (long start = position, end = position + count; start < end; start += rangeSize) {
+			final long rangeStart = start;
+			final long rangeCount = Math.min(rangeSize, end - start);
+
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					copyRange(source, target, rangeStart, rangeCount, bufferSize, monitor);
+					return null;
+				}
+			});
+		}
+
+		List<Future<Void>> results;
+
+		try {
+			results = Pool.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+
+				throw new IOException(cause);
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package avi.copy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Runs next to a destination that the copier reaches over a slow network
+ * mount, writing what {@link RemoteCopyEngine} sends straight to the local
+ * disk. Blocks arrive compressed unless compressing them didn't pay.
+ * <p>
+ * Each connection writes one range of one file. The sender starts with
+ * {@link #Magic}, {@link #Version}, the file's path relative to the
+ * receiver's folder (as UTF, with '/' separators) and the position to write
+ * at; the receiver answers with a status. Then come frames, each a type
+ * byte followed by:
+ * <dl>
+ * <dt>{@link #Raw}</dt>
+ * <dd>the length, then the bytes</dd>
+ * <dt>{@link #Deflated}</dt>
+ * <dd>the length, the compressed length, then the compressed bytes</dd>
+ * <dt>{@link #End}</dt>
+ * <dd>nothing; the receiver forces the file to disk and answers with a
+ * status and the number of bytes written</dd>
+ * </dl>
+ * A status is a byte, 0 if all is well, otherwise followed by a message as
+ * UTF. Lengths are ints and positions longs, as written by
+ * {@link DataOutputStream}.
+ * <p>
+ * There is no authentication: anyone who can connect can write to the
+ * folder, so only run it on a trusted network.
+ */
+public final class Receiver {
+
+	static final int DefaultPort = 7733;
+
+	static final byte Deflated = 1;
+
+	static final byte End = 2;
+
+	static final int Magic = 0x41564943;
+
+	/**
+	 * The largest block accepted, compressed or not.
+	 */
+	static final int MaxBlockSize = 0x4000000;
+
+	static final byte Raw = 0;
+
+	private static final String[] Usage = { // <br/>
+			"Usage: java avi.copy.Receiver [options] {folder}", // <br/>
+			"  --port=number       the port to listen on (default " + DefaultPort + ")" // <br/>
+	};
+
+	static final int Version = 1;
+
+	private static byte[] ensure(byte[] buffer, int length) throws IOException {
+		if (length < 0 || length > MaxBlockSize) {
+			throw new IOException("Bad block length: " + length);
+		}
+
+		return buffer.length >= length ? buffer : new byte[length];
+	}
+
+	private static void inflate(Inflater inflater, byte[] block, int length) throws IOException {
+		int done = 0;
+
+		try {
+			for (int len; done < length && (len = inflater.inflate(block, done, length - done)) > 0;) {
+				done += len;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Bad compressed block.", e);
+		}
+
+		if (done != length) {
+			throw new IOException("Bad compressed block.");
+		}
+	}
+
+	public static void main(String[] args) {
+		int port = DefaultPort;
+		File folder = null;
+
+		for (String arg : args) {
+			try {
+				if (arg.startsWith("--port=")) {
+					port = Integer.parseInt(arg.substring(7));
+				} else if (!arg.startsWith("-") && folder == null) {
+					folder = new File(arg);
+				} else {
+					folder = null;
+					break;
+				}
+			} catch (NumberFormatException e) {
+				folder = null;
+				break;
+			}
+		}
+
+		if (folder == null) {
+			for (String line : Usage) {
+				System.err.println(line);
+			}
+
+			System.exit(2);
+		} else if (!folder.isDirectory()) {
+			System.err.println("Folder not found.");
+			System.exit(1);
+		}
+
+		try {
+			new Receiver(folder).run(port);
+		} catch (IOException e) {
+			System.err.println(e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+
+	private static String messageOf(IOException e) {
+		String message = e.getLocalizedMessage();
+
+		// such as the sender going away
+		return message != null ? message : e.getClass().getSimpleName();
+	}
+
+	private final File folder;
+
+	Receiver(File folder) throws IOException {
+		super();
+		this.folder = folder.getCanonicalFile();
+	}
+
+	/**
+	 * Handles one connection, reporting any trouble to the sender as well as
+	 * here.
+	 */
+	/*private*/void receive(Socket socket) {
+		String path = null;
+
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 0x10000));
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			if (input.readInt() != Magic || input.readInt() != Version) {
+				throw new IOException("Not a copier, or a different version.");
+			}
+
+			path = input.readUTF();
+
+			long position = input.readLong();
+			RandomAccessFile out;
+
+			try {
+				out = new RandomAccessFile(resolve(path), "rw");
+			} catch (IOException e) {
+				output.writeByte(1);
+				output.writeUTF(messageOf(e));
+				output.flush();
+				throw e;
+			}
+
+			try {
+				output.writeByte(0);
+				output.flush();
+
+				long written;
+
+				try {
+					written = write(input, out, position);
+					out.getChannel().force(false);
+				} catch (IOException e) {
+					output.writeByte(1);
+					output.writeUTF(messageOf(e));
+					output.flush();
+					throw e;
+				}
+
+				output.writeByte(0);
+				output.writeLong(written);
+				output.flush();
+			} finally {
+				Util.safeClose(out);
+			}
+		} catch (IOException e) {
+			System.err.format("%s: %s%n", path != null ? path : socket.getRemoteSocketAddress(), messageOf(e));
+		} finally {
+			Util.safeClose(socket);
+		}
+	}
+
+	/**
+	 * @return the file at {@code path} in the folder, which must not lead out
+	 *         of it
+	 */
+	private File resolve(String path) throws IOException {
+		File file = new File(folder, path.replace('/', File.separatorChar)).getCanonicalFile();
+
+		if (!file.getPath().startsWith(folder.getPath() + File.separator)) {
+			throw new IOException("Not in the folder: " + path);
+		}
+
+		file.getParentFile().mkdirs();
+
+		return file;
+	}
+
+	private void run(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port);
+
+		System.out.format("Receiving into %s on port %d.%n", folder, Integer.valueOf(server.getLocalPort()));
+		serve(server);
+	}
+
+	/**
+	 * Handles connections to {@code server}, each on its own thread, until
+	 * it is closed.
+	 */
+	void serve(ServerSocket server) throws IOException {
+		int count = 0;
+
+		try {
+			for (;;) {
+				final Socket socket = server.accept();
+				Thread thread = new Thread("receive-" + ++count) {
+					@Override
+					public void run() {
+						receive(socket);
+					}
+				};
+
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} finally {
+			Util.safeClose(server);
+		}
+	}
+
+	/**
+	 * Writes the frames that follow to {@code out}, from {@code position}.
+	 *
+	 * @return the number of bytes written
+	 */
+	private long write(DataInputStream input, RandomAccessFile out, long position) throws IOException {
+		byte[] block = new byte[0];
+		byte[] packed = new byte[0];
+		Inflater inflater = new Inflater();
+		long written = 0;
+
+		try {
+			out.seek(position);
+
+			for (int type; (type = input.readByte()) != End;) {
+				int length = input.readInt();
+
+				block = ensure(block, length);
+
+				if (type == Raw) {
+					input.readFully(block, 0, length);
+				} else if (type == Deflated) {
+					int packedLength = input.readInt();
+
+					packed = ensure(packed, packedLength);
+					input.readFully(packed, 0, packedLength);
+					inflater.reset();
+					inflater.setInput(packed, 0, packedLength);
+					inflate(inflater, block, length);
+				} else {
+					throw new IOException("Bad frame type: " + type);
+				}
+
+				out.write(block, 0, length);
+				written += length;
+			}
+		} finally {
+			inflater.end();
+		}
+
+		return written;
+	}
+}
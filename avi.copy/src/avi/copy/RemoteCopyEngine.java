@@ -0,0 +1,216 @@
+package avi.copy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Sends the data to a {@link Receiver} running next to the destination
+ * rather than writing it over a network mount, compressing each block
+ * unless that saves too little to be worth it, as with most video.
+ * <p>
+ * Used for destinations under {@code avi.copy.agentFolder}, the local path
+ * of the folder the receiver at {@code avi.copy.agent} (host, with an
+ * optional port) writes to. The copier still creates, sizes and checks the
+ * file through the mount; only the data goes through the receiver, which
+ * has it on disk before {@link #copy} returns.
+ */
+final class RemoteCopyEngine implements CopyEngine {
+
+	/**
+	 * How much of a block is compressed to decide whether the rest is worth
+	 * compressing.
+	 */
+	private static final int SampleSize = 0x10000;
+
+	/**
+	 * @return the engine to copy to {@code destination}, or null if it isn't
+	 *         under {@code avi.copy.agentFolder}
+	 */
+	static RemoteCopyEngine forDestination(File destination, Checksum checksum) {
+		String agent = Settings.getString("agent", "");
+		String agentFolder = Settings.getString("agentFolder", "");
+
+		if (agent.isEmpty() || agentFolder.isEmpty()) {
+			return null;
+		}
+
+		String folder = new File(agentFolder).getAbsolutePath() + File.separator;
+		String path = destination.getAbsolutePath();
+
+		if (!path.startsWith(folder)) {
+			return null;
+		}
+
+		int colon = agent.lastIndexOf(':');
+		int port = Receiver.DefaultPort;
+
+		if (colon >= 0) {
+			try {
+				port = Integer.parseInt(agent.substring(colon + 1));
+				agent = agent.substring(0, colon);
+			} catch (NumberFormatException e) {
+				// no port, perhaps an IPv6 address
+			}
+		}
+
+		return new RemoteCopyEngine(new InetSocketAddress(agent, port), // <br/>
+				path.substring(folder.length()).replace(File.separatorChar, '/'), checksum, // <br/>
+				Settings.getInt("agentBlockSize", 0x100000), Settings.getInt("agentLevel", Deflater.BEST_SPEED));
+	}
+
+	/**
+	 * Compresses {@code length} bytes of {@code block} into {@code packed},
+	 * first trying a sample so that data that doesn't compress costs little.
+	 *
+	 * @return the compressed length, or -1 if compressing saves less than an
+	 *         eighth
+	 */
+	private static int pack(Deflater deflater, byte[] block, int length, byte[] packed) {
+		int sample = Math.min(SampleSize, length);
+		int packedLength = pack(deflater, block, sample, packed, sample - sample / 8);
+
+		if (packedLength < 0 || sample == length) {
+			return packedLength;
+		}
+
+		return pack(deflater, block, length, packed, length - length / 8);
+	}
+
+	/**
+	 * @return the compressed length, or -1 if over {@code limit}
+	 */
+	private static int pack(Deflater deflater, byte[] block, int length, byte[] packed, int limit) {
+		int packedLength = 0;
+
+		deflater.reset();
+		deflater.setInput(block, 0, length);
+		deflater.finish();
+
+		while (!deflater.finished() && packedLength < limit) {
+			packedLength += deflater.deflate(packed, packedLength, limit - packedLength);
+		}
+
+		return deflater.finished() ? packedLength : -1;
+	}
+
+	/**
+	 * Reads a status from the receiver, throwing its message if it isn't
+	 * happy.
+	 */
+	private static void readStatus(DataInputStream input) throws IOException {
+		if (input.readByte() != 0) {
+			throw new IOException("Receiver: " + input.readUTF());
+		}
+	}
+
+	private final InetSocketAddress address;
+
+	private final int blockSize;
+
+	private final Checksum checksum;
+
+	private final int level;
+
+	private final String path;
+
+	/**
+	 * @param path
+	 *            the destination, relative to the receiver's folder
+	 * @param checksum
+	 *            if not null, the source bytes are added to it as they pass
+	 *            through
+	 */
+	RemoteCopyEngine(InetSocketAddress address, String path, Checksum checksum, int blockSize, int level) {
+		super();
+		this.address = address;
+		this.blockSize = blockSize;
+		this.checksum = checksum;
+		this.level = level;
+		this.path = path;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, Monitor monitor)
+			throws IOException {
+		byte[] block = new byte[blockSize];
+		byte[] packed = new byte[blockSize];
+		Deflater deflater = new Deflater(level);
+		// unlike a socket's own streams, a channel's give up when interrupted
+		SocketChannel channel = SocketChannel.open(address);
+
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 0x10000));
+			long sent = 0;
+
+			output.writeInt(Receiver.Magic);
+			output.writeInt(Receiver.Version);
+			output.writeUTF(path);
+			output.writeLong(position);
+			output.flush();
+			readStatus(input);
+
+			in.seek(position);
+
+			while (sent < count) {
+				if (!monitor.proceed()) {
+					break;
+				}
+
+				int len = 0;
+
+				for (int n; len < blockSize && sent + len < count // <br/>
+						&& (n = in.read(block, len, (int) Math.min(blockSize - len, count - sent - len))) > 0;) {
+					len += n;
+				}
+
+				if (len <= 0) {
+					// the source is shorter than expected
+					break;
+				}
+
+				if (checksum != null) {
+					checksum.update(block, 0, len);
+				}
+
+				int packedLength = pack(deflater, block, len, packed);
+
+				if (packedLength < 0) {
+					output.writeByte(Receiver.Raw);
+					output.writeInt(len);
+					output.write(block, 0, len);
+				} else {
+					output.writeByte(Receiver.Deflated);
+					output.writeInt(len);
+					output.writeInt(packedLength);
+					output.write(packed, 0, packedLength);
+				}
+
+				sent += len;
+				monitor.copied(len);
+			}
+
+			output.writeByte(Receiver.End);
+			output.flush();
+			readStatus(input);
+
+			if (input.readLong() != sent) {
+				throw new IOException("Receiver didn't write everything sent.");
+			}
+		} finally {
+			deflater.end();
+			Util.safeClose(channel);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package avi.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans and runs copy batches independently of any user interface.
+ * <p>
+ * Apart from {@link #plan(File, File, File)}, which may run on a separate
+ * (single) thread, methods are meant to be called from one thread, such as
+ * the SWT display thread or the main thread of the command line tool.
+ */
+final class Session {
+
+	private final List<String> failures;
+
+	private final List<Progress.Listener> listeners;
+
+	private Planner.Plan plan;
+
+	private final Planner planner;
+
+	private final ControlSaver saver;
+
+	private CopyScheduler scheduler;
+
+	Session() {
+		super();
+		this.failures = new ArrayList<>();
+		this.listeners = new ArrayList<>();
+		this.plan = new Planner.Plan("No plan.");
+		this.planner = new Planner();
+		this.saver = new ControlSaver();
+		this.scheduler = null;
+	}
+
+	/**
+	 * Stops copying, keeping partial files so they can be resumed.
+	 */
+	public void abort() {
+		if (scheduler != null) {
+			scheduler.abort();
+		}
+	}
+
+	/**
+	 * Registers a listener to be told of progress whenever {@link #poll()}
+	 * finds a batch running.
+	 */
+	public void addListener(Progress.Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Makes {@code newPlan} the plan for the next batch, unless a batch is
+	 * running.
+	 *
+	 * @return true if the plan was adopted
+	 */
+	public boolean adopt(Planner.Plan newPlan) {
+		if (scheduler != null) {
+			return false;
+		}
+
+		plan = newPlan;
+
+		return true;
+	}
+
+	/**
+	 * Aborts any batch and writes outstanding control file changes, waiting
+	 * at most {@code timeout} milliseconds for them.
+	 */
+	public void close(long timeout) {
+		if (scheduler != null) {
+			scheduler.abort();
+			scheduler.awaitDone(timeout);
+			poll();
+		}
+
+		saver.close(timeout);
+		// include the final control file save
+		Metrics.dumpIfWanted();
+	}
+
+	/**
+	 * Moves descriptions of the files that failed to copy, as noticed by
+	 * {@link #poll()}, into {@code sink}.
+	 */
+	public void drainFailures(Collection<String> sink) {
+		sink.addAll(failures);
+		failures.clear();
+	}
+
+	public Planner.Plan getPlan() {
+		return plan;
+	}
+
+	public boolean isCopying() {
+		return scheduler != null;
+	}
+
+	public void pause() {
+		if (scheduler != null) {
+			scheduler.pause();
+		}
+	}
+
+	/**
+	 * Works out what needs copying, after any pending control file changes
+	 * have been written.
+	 */
+	public Planner.Plan plan(File srcDir, File ctlFile, File dstDir) throws InterruptedException {
+		IOException trouble = saver.await();
+
+		if (trouble != null) {
+			return new Planner.Plan("Can't save control file: " + trouble.getLocalizedMessage());
+		}
+
+		return planner.plan(srcDir, ctlFile, dstDir);
+	}
+
+	/**
+	 * Records the files that have finished, tells listeners of progress and
+	 * notices the end of a batch.
+	 *
+	 * @return true if a batch is still running
+	 */
+	public boolean poll() {
+		if (scheduler == null) {
+			return false;
+		}
+
+		boolean done = scheduler.isDone();
+		List<WorkItem> finished = new ArrayList<>();
+
+		scheduler.drainFinished(finished);
+		scheduler.drainFailures(failures);
+
+		for (WorkItem item : finished) {
+			updateNewest(item);
+		}
+
+		if (done) {
+			scheduler = null;
+			saver.flush();
+
+			IOException trouble = Metrics.dumpIfWanted();
+
+			if (trouble != null) {
+				failures.add("Can't write metrics: " + trouble.getLocalizedMessage());
+			}
+		} else if (!listeners.isEmpty()) {
+			Progress.Snapshot snapshot = scheduler.getProgress().snapshot();
+
+			for (Progress.Listener listener : listeners) {
+				listener.progressed(snapshot);
+			}
+		}
+
+		return !done;
+	}
+
+	/**
+	 * Stops copying {@code item}, leaving the rest of the batch to carry on.
+	 */
+	public void skip(WorkItem item) {
+		if (scheduler != null) {
+			scheduler.skip(item);
+		}
+	}
+
+	/**
+	 * Queues files discovered since the current plan was made, starting a
+	 * batch if none is running. Files that are already at the destination
+	 * (and any mirrors) or are not newer than their folder's time are ignored.
+	 *
+	 * @return the number of files queued
+	 */
+	public int submit(List<WorkItem> items) {
+		if (plan.error != null) {
+			return 0;
+		}
+
+		Map<String, Date> newest = plan.controlData.getNewest();
+		List<WorkItem> wanted = new ArrayList<>();
+
+		for (WorkItem item : items) {
+			Date time = newest.get(item.getFolderName());
+
+			if (time == null || item.getModified() <= time.getTime()) {
+				continue;
+			}
+
+			if (plan.destinationsOf(item).isEmpty()) {
+				continue;
+			}
+
+			wanted.add(item);
+		}
+
+		if (wanted.isEmpty()) {
+			return 0;
+		}
+
+		List<WorkItem> added;
+
+		if (scheduler != null) {
+			added = scheduler.submit(wanted);
+		} else {
+			added = wanted;
+			scheduler = new CopyScheduler(plan, wanted);
+			scheduler.start();
+		}
+
+		return added.size();
+	}
+
+	/**
+	 * Starts copying the current plan, or resumes a paused batch.
+	 */
+	public void start() {
+		if (scheduler != null) {
+			scheduler.unpause();
+		} else if (plan.error == null) {
+			scheduler = new CopyScheduler(plan, plan.work);
+			scheduler.start();
+		}
+	}
+
+	private void updateNewest(WorkItem item) {
+		String folderName = item.getFolderName();
+
+		if (folderName != null) {
+			ControlData controlData = plan.controlData;
+			Map<String, Date> newest = controlData.getNewest();
+			Date current = newest.get(folderName);
+			Date date = new Date(item.getModified());
+
+			if (current == null || date.after(current)) {
+				newest.put(folderName, date);
+				saver.changed(controlData, folderName, date);
+			}
+		}
+	}
+}
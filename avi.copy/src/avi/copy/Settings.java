@@ -0,0 +1,31 @@
+package avi.copy;
+
+/**
+ * Tuning options, read from {@code avi.copy.*} system properties.
+ */
+final class Settings {
+
+	private static final String Prefix = "avi.copy.";
+
+	static boolean getBoolean(String name, boolean defaultValue) {
+		String value = System.getProperty(Prefix + name);
+
+		return value != null ? Boolean.parseBoolean(value) : defaultValue;
+	}
+
+	static int getInt(String name, int defaultValue) {
+		return Integer.getInteger(Prefix + name, defaultValue).intValue();
+	}
+
+	static long getLong(String name, long defaultValue) {
+		return Long.getLong(Prefix + name, defaultValue).longValue();
+	}
+
+	static String getString(String name, String defaultValue) {
+		return System.getProperty(Prefix + name, defaultValue);
+	}
+
+	private Settings() {
+		super();
+	}
+}
@@ -0,0 +1,124 @@
+package avi.copy;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.Checksum;
+
+/**
+ * Copies through a small heap buffer; works everywhere. If given a checksum,
+ * the source bytes are added to it as they pass through.
+ */
+final class StreamCopyEngine implements CopyEngine {
+
+	/**
+	 * The granularity of holes left by sparse writes; the usual file system
+	 * block size.
+	 */
+	private static final int HoleSize = 0x1000;
+
+	private static boolean isZero(byte[] data, int offset, int length) {
+		for (int i = offset, end = offset + length; i < end; ++i) {
+			if (data[i] != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes {@code length} bytes of {@code data} at {@code position}. If
+	 * {@code sparse}, blocks of zeros are skipped rather than written, which
+	 * leaves holes in a file already extended past them.
+	 */
+	static void write(RandomAccessFile out, long position, byte[] data, int offset, int length, boolean sparse)
+			throws IOException {
+		if (!sparse) {
+			out.seek(position);
+			out.write(data, offset, length);
+			return;
+		}
+
+		for (int start = 0; start < length;) {
+			int end = start;
+
+			// skip zeros, then write up to the next block of them
+			while (end < length && isZero(data, offset + end, Math.min(HoleSize, length - end))) {
+				end += Math.min(HoleSize, length - end);
+			}
+
+			start = end;
+
+			while (end < length && !isZero(data, offset + end, Math.min(HoleSize, length - end))) {
+				end += Math.min(HoleSize, length - end);
+			}
+
+			if (end > start) {
+				out.seek(position + start);
+				out.write(data, offset + start, end - start);
+				start = end;
+			}
+		}
+	}
+
+	private final int bufferSize;
+
+	private final Checksum checksum;
+
+	private final boolean sparse;
+
+	StreamCopyEngine(int bufferSize) {
+		this(bufferSize, null, false);
+	}
+
+	/**
+	 * @param sparse
+	 *            if true, blocks of zeros are not written (see
+	 *            {@link #write(RandomAccessFile, long, byte[], int, int, boolean)})
+	 */
+	StreamCopyEngine(int bufferSize, Checksum checksum, boolean sparse) {
+		super();
+		this.bufferSize = bufferSize;
+		this.checksum = checksum;
+		this.sparse = sparse;
+	}
+
+	@Override
+	public void copy(RandomAccessFile in, RandomAccessFile out, long position, long count, Monitor monitor)
+			throws IOException {
+		byte[] buffer = new byte[bufferSize];
+		int len;
+
+		in.seek(position);
+		out.seek(position);
+
+		while (count > 0) {
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			len = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+
+			if (len < 0) {
+				break;
+			}
+
+			if (!monitor.proceed()) {
+				break;
+			}
+
+			if (checksum != null) {
+				checksum.update(buffer, 0, len);
+			}
+
+			if (sparse) {
+				write(out, position, buffer, 0, len, true);
+			} else {
+				out.write(buffer, 0, len);
+			}
+			position += len;
+			count -= len;
+			monitor.copied(len);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package avi.copy;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the combined rate of all copies using a token bucket, so copying
+ * can share the disks with media playback.
+ * <p>
+ * The limit is {@code avi.copy.rate} megabytes per second (0, the default,
+ * means no limit), unless a window of {@code avi.copy.rateSchedule} applies;
+ * for example {@code 18:00-23:30=4,23:30-08:00=0} limits copying to 4 MB/s
+ * in the evening and lifts the limit overnight. A plan is refused if the
+ * schedule can't be read (see {@link #checkSettings()}).
+ * <p>
+ * With {@code avi.copy.adaptive} set, the rate is also halved whenever the
+ * time taken to move each megabyte rises well above what it normally is,
+ * which suggests someone else is using the disk, and raised again slowly
+ * once it recovers.
+ */
+final class Throttle {
+
+	private static final class Window {
+
+		final int end;
+
+		final long rate;
+
+		final int start;
+
+		Window(int start, int end, long rate) {
+			super();
+			this.end = end;
+			this.rate = rate;
+			this.start = start;
+		}
+
+		boolean contains(int minute) {
+			if (start <= end) {
+				return start <= minute && minute < end;
+			} else {
+				// the window spans midnight
+				return start <= minute || minute < end;
+			}
+		}
+	}
+
+	private static final long MB = 1L << 20;
+
+	private static final long Second = 1000000000L;
+
+	private static final Pattern Time = Pattern.compile("(\\d{1,2}):(\\d\\d)");
+
+	/**
+	 * @return what is wrong with {@code avi.copy.rateSchedule}, or null if
+	 *         nothing is
+	 */
+	static String checkSettings() {
+		try {
+			parseSchedule(Settings.getString("rateSchedule", ""));
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+
+		return null;
+	}
+
+	static Throttle fromSettings() {
+		long rate = Settings.getLong("rate", 0) * MB;
+		List<Window> schedule = parseSchedule(Settings.getString("rateSchedule", ""));
+		boolean adaptive = Settings.getBoolean("adaptive", false);
+
+		if (rate <= 0 && schedule.isEmpty() && !adaptive) {
+			return null;
+		}
+
+		return new Throttle(rate, schedule, adaptive);
+	}
+
+	private static List<Window> parseSchedule(String text) {
+		List<Window> schedule = new ArrayList<>();
+
+		for (String entry : text.split(",")) {
+			if (entry.trim().isEmpty()) {
+				continue;
+			}
+
+			try {
+				int equals = entry.indexOf('=');
+				int dash = entry.indexOf('-');
+
+				if (dash < 0 || equals < dash) {
+					throw new IllegalArgumentException(entry);
+				}
+
+				int start = parseTime(entry.substring(0, dash));
+				int end = parseTime(entry.substring(dash + 1, equals));
+				long rate = Long.parseLong(entry.substring(equals + 1).trim()) * MB;
+
+				if (rate < 0) {
+					throw new IllegalArgumentException(entry);
+				}
+
+				schedule.add(new Window(start, end, rate));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Bad avi.copy.rateSchedule entry: " + entry.trim(), e);
+			}
+		}
+
+		return Collections.unmodifiableList(schedule);
+	}
+
+	/**
+	 * @return the minute of the day at {@code text}, as hh:mm; 24:00, the end
+	 *         of the day, is the same as 00:00
+	 */
+	private static int parseTime(String text) {
+		Matcher matcher = Time.matcher(text.trim());
+
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException(text);
+		}
+
+		int hour = Integer.parseInt(matcher.group(1));
+		int minute = Integer.parseInt(matcher.group(2));
+
+		if (minute > 59 || hour > 24 || (hour == 24 && minute != 0)) {
+			throw new IllegalArgumentException(text);
+		}
+
+		return (hour * 60 + minute) % (24 * 60);
+	}
+
+	private final boolean adaptive;
+
+	private double baseline;
+
+	private long checked;
+
+	private double latency;
+
+	private long limit;
+
+	private final long minimum;
+
+	private final long rate;
+
+	private final List<Window> schedule;
+
+	private long scheduled;
+
+	private final ThreadLocal<long[]> since;
+
+	private double tokens;
+
+	private long updated;
+
+	private Throttle(long rate, List<Window> schedule, boolean adaptive) {
+		super();
+		this.adaptive = adaptive;
+		this.baseline = Double.MAX_VALUE;
+		this.checked = System.nanoTime() - Second;
+		this.latency = 0;
+		this.limit = 0;
+		this.minimum = Math.max(1, Settings.getLong("minimumRate", 1)) * MB;
+		this.rate = rate;
+		this.schedule = schedule;
+		this.scheduled = 0;
+		this.since = new ThreadLocal<long[]>() {
+			@Override
+			protected long[] initialValue() {
+				return new long[1];
+			}
+		};
+		this.tokens = 0;
+		this.updated = System.nanoTime();
+	}
+
+	/**
+	 * Accounts for {@code count} bytes just moved by the calling thread.
+	 *
+	 * @return how many milliseconds the caller should wait before moving
+	 *         any more
+	 */
+	public long charge(long count) {
+		long now = System.nanoTime();
+		long[] last = since.get();
+		long elapsed = last[0] != 0 ? now - last[0] : -1;
+		long delay;
+
+		synchronized (this) {
+			if (now - checked >= Second) {
+				checked = now;
+				scheduled = currentRate();
+				adjust();
+			}
+
+			if (adaptive && elapsed > 0 && count >= 0x10000) {
+				sample(elapsed * (double) MB / count);
+			}
+
+			long current = effectiveRate();
+
+			if (current <= 0) {
+				tokens = 0;
+				delay = 0;
+			} else {
+				// allow bursts of up to a quarter of a second's worth
+				tokens = Math.min(tokens + (now - updated) * (double) current / Second, current / 4.0);
+				tokens -= count;
+				delay = tokens < 0 ? (long) (-tokens * Second / current) : 0;
+			}
+
+			updated = now;
+		}
+
+		last[0] = now + delay;
+
+		return delay / 1000000;
+	}
+
+	/**
+	 * Tells the throttle that the calling thread has been waiting for some
+	 * other reason, so the time since it last moved data says nothing about
+	 * the disk.
+	 */
+	public void idle() {
+		since.get()[0] = 0;
+	}
+
+	/**
+	 * Raises or lowers the adaptive limit; called at most once a second.
+	 */
+	private void adjust() {
+		if (!adaptive || latency == 0) {
+			return;
+		}
+
+		long ceiling = scheduled > 0 ? scheduled : Long.MAX_VALUE;
+
+		if (latency > baseline * Settings.getInt("adaptiveFactor", 2)) {
+			long current = limit > 0 ? limit : Math.min(ceiling, (long) (MB * (Second / latency)));
+
+			limit = Math.max(minimum, current / 2);
+		} else if (limit > 0) {
+			limit += Math.max(minimum, limit / 10);
+
+			if (limit >= ceiling) {
+				limit = 0;
+			}
+		}
+
+		// let the baseline drift up in case the disk has simply got slower
+		baseline *= 1.01;
+	}
+
+	private long currentRate() {
+		if (!schedule.isEmpty()) {
+			Calendar calendar = Calendar.getInstance();
+			int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+
+			for (Window window : schedule) {
+				if (window.contains(minute)) {
+					return window.rate;
+				}
+			}
+		}
+
+		return rate;
+	}
+
+	private long effectiveRate() {
+		if (limit > 0 && (scheduled <= 0 || limit < scheduled)) {
+			return limit;
+		}
+
+		return scheduled;
+	}
+
+	private void sample(double nanosPerMB) {
+		latency = latency == 0 ? nanosPerMB : latency * 0.8 + nanosPerMB * 0.2;
+		baseline = Math.min(baseline, latency);
+	}
+}
@@ -1,11 +1,29 @@
 package avi.copy;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.MathContext;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class Util {
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	public static String format(long amount) {
 		NumberFormat format = NumberFormat.getInstance();
 
@@ -30,6 +48,20 @@ public final class Util {
 		}
 	}
 
+	/**
+	 * Formats a number of seconds as h:mm:ss, or m:ss if under an hour.
+	 */
+	public static String formatDuration(long seconds) {
+		long hours = seconds / 3600;
+		long minutes = seconds / 60 % 60;
+
+		if (hours == 0) {
+			return String.format("%d:%02d", Long.valueOf(minutes), Long.valueOf(seconds % 60));
+		}
+
+		return String.format("%d:%02d:%02d", Long.valueOf(hours), Long.valueOf(minutes), Long.valueOf(seconds % 60));
+	}
+
 	private static String format2(long amount) {
 		BigDecimal v = new BigDecimal(amount >>> 1).multiply(BigDecimal.valueOf(2));
 
@@ -68,8 +100,90 @@ public final class Util {
 		show(-1);
 	}
 
+	/**
+	 * Reads a file of lines of tab-separated fields, such as the journal,
+	 * skipping lines with the wrong number of fields.
+	 *
+	 * @return the fields of each line, or none if there is no such file
+	 */
+	static List<String[]> readFields(File file, int count) throws IOException {
+		List<String[]> result = new ArrayList<>();
+		BufferedReader reader;
+
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		} catch (FileNotFoundException e) {
+			return result;
+		}
+
+		try {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", count);
+
+				if (fields.length == count) {
+					result.add(fields);
+				}
+			}
+		} finally {
+			safeClose(reader);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Renames {@code source} over {@code target}, atomically where the file
+	 * system allows it.
+	 */
+	static void replace(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), // <br/>
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	static void safeClose(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
 	private static void show(long value) {
 		System.out.format("%,d -> %s / %s\n", //$NON-NLS-1$
 				Long.valueOf(value), format(value), format2(value));
 	}
+
+	/**
+	 * Writes {@code lines} to a temporary file and forces it to disk before
+	 * it replaces {@code file}, so a crash leaves either the old or the new
+	 * file whole.
+	 */
+	static void writeLines(File file, List<String> lines) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+
+		try {
+			Writer writer = new OutputStreamWriter(out, UTF8);
+
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+
+			writer.flush();
+			out.getChannel().force(true);
+		} finally {
+			safeClose(out);
+		}
+
+		replace(temp, file);
+	}
 }
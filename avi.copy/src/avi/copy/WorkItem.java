@@ -0,0 +1,49 @@
+package avi.copy;
+
+final class WorkItem implements Comparable<WorkItem> {
+
+	private final long length;
+
+	private final long modified;
+
+	private final String pathName;
+
+	public WorkItem(String pathName, long length, long modified) {
+		super();
+		this.length = length;
+		this.modified = modified;
+		this.pathName = pathName;
+	}
+
+	@Override
+	public int compareTo(WorkItem that) {
+		return this.pathName.compareTo(that.pathName);
+	}
+
+	/**
+	 * @return the folder part of the path name, or null if there is none
+	 */
+	public String getFolderName() {
+		int slash = pathName.lastIndexOf('/');
+
+		return slash >= 0 ? pathName.substring(0, slash) : null;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public String getPathName() {
+		return pathName;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%1$s (%2$,d bytes)", // <br/>
+				pathName, Long.valueOf(length));
+	}
+}